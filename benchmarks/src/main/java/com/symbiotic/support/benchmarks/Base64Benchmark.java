@@ -0,0 +1,119 @@
+package com.symbiotic.support.benchmarks;
+
+import com.symbiotic.support.Base64;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares com.symbiotic.support.Base64 with java.util.Base64, which is the baseline.
+ * android.util.Base64 only exists on a device, so it has to be compared there.
+ * Run with -prof gc to get the allocation rate of each method.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Base64Benchmark
+{
+	@Param({ "16", "256", "4096", "65536", "1048576", "16777216" })
+	public int size;
+
+	private byte []data;
+	private String encodedString;
+	private byte []encodedBytes;
+	private byte []encodeBuffer;
+	private byte []decodeBuffer;
+
+	@Setup
+	public void setup()
+	{
+		this.data = new byte[this.size];
+		new Random(42).nextBytes(this.data);
+		this.encodedString = java.util.Base64.getEncoder().encodeToString(this.data);
+		this.encodedBytes = java.util.Base64.getEncoder().encode(this.data);
+		this.encodeBuffer = new byte[Base64.encodedLength(this.size)];
+		this.decodeBuffer = new byte[this.size];
+	}
+
+	@Benchmark
+	public String encodeStringJdk()
+	{
+		return java.util.Base64.getEncoder().encodeToString(this.data);
+	}
+
+	@Benchmark
+	public String encodeString()
+	{
+		return Base64.encode(this.data);
+	}
+
+	@Benchmark
+	public int encodeIntoArrayJdk()
+	{
+		return java.util.Base64.getEncoder().encode(this.data, this.encodeBuffer);
+	}
+
+	@Benchmark
+	public int encodeIntoArray()
+	{
+		return Base64.encode(this.data, 0, this.data.length, this.encodeBuffer, 0);
+	}
+
+	@Benchmark
+	public int encodeIntoArrayParallel() throws IOException
+	{
+		return Base64.encodeParallel(this.data, 0, this.data.length, this.encodeBuffer, 0, Base64.DEFAULT, null);
+	}
+
+	@Benchmark
+	public byte []decodeStringJdk()
+	{
+		return java.util.Base64.getDecoder().decode(this.encodedString);
+	}
+
+	@Benchmark
+	public byte []decodeString() throws IOException
+	{
+		return Base64.decode(this.encodedString);
+	}
+
+	@Benchmark
+	public int decodeIntoArrayJdk()
+	{
+		return java.util.Base64.getDecoder().decode(this.encodedBytes, this.decodeBuffer);
+	}
+
+	@Benchmark
+	public int decodeIntoArray() throws IOException
+	{
+		return Base64.decode(this.encodedBytes, 0, this.encodedBytes.length, this.decodeBuffer, 0);
+	}
+
+	@Benchmark
+	public int decodeIntoArrayParallel() throws IOException
+	{
+		return Base64.decodeParallel(this.encodedBytes, 0, this.encodedBytes.length, this.decodeBuffer, 0, Base64.DEFAULT, null);
+	}
+
+	@Benchmark
+	public boolean isValid()
+	{
+		return Base64.isValid(this.encodedString);
+	}
+}
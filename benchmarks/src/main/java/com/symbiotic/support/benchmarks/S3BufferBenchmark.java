@@ -0,0 +1,118 @@
+package com.symbiotic.support.benchmarks;
+
+import com.symbiotic.support.S3Digest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares preparing and sending an upload from a ByteBuffer with the byte[] path uploadData needs.
+ * The baseline copies the buffer into a new array, digests the array and writes it in 8 KB blocks, as DataBody does.
+ * The buffer path digests the buffer in place and writes it with S3Digest.copy. Run with -prof gc to see the allocation per upload.
+ * The file benchmarks compare digesting a file region through the channel with digesting a mapping of it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class S3BufferBenchmark
+{
+	@Param({ "4096", "1048576", "16777216" })
+	public int size;
+
+	@Param({ "true", "false" })
+	public boolean direct;
+
+	private ByteBuffer buffer;
+	private File file;
+	private RandomAccessFile mappedFile;
+	private MappedByteBuffer mapped;
+
+	private static final OutputStream NULL_OUTPUT = new OutputStream() {
+		@Override
+		public void write(int b) {}
+
+		@Override
+		public void write(byte []b, int off, int len) {}
+	};
+
+	@Setup
+	public void setup() throws IOException
+	{
+		byte []data = new byte[this.size];
+		new Random(42).nextBytes(data);
+		this.buffer = this.direct ? ByteBuffer.allocateDirect(this.size) : ByteBuffer.allocate(this.size);
+		this.buffer.put(data).flip();
+
+		this.file = File.createTempFile("s3buffer", ".bin");
+		FileOutputStream out = new FileOutputStream(this.file);
+		out.write(data);
+		out.close();
+		this.mappedFile = new RandomAccessFile(this.file, "r");
+		this.mapped = this.mappedFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, this.size);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException
+	{
+		this.mappedFile.close();
+		this.file.delete();
+	}
+
+	@Benchmark
+	public boolean uploadByteArray() throws IOException
+	{
+		ByteBuffer view = this.buffer.duplicate();
+		byte []data = new byte[view.remaining()];
+		S3Digest digest;
+
+		view.get(data);
+		digest = S3Digest.compute(data, 0, data.length);
+		for(int off = 0; off < data.length; off += 8192)
+			NULL_OUTPUT.write(data, off, Math.min(8192, data.length - off));
+		return digest.isGzip();
+	}
+
+	@Benchmark
+	public boolean uploadBuffer() throws IOException
+	{
+		S3Digest digest = S3Digest.compute(this.buffer);
+		S3Digest.copy(this.buffer, NULL_OUTPUT);
+		return digest.isGzip();
+	}
+
+	@Benchmark
+	public S3Digest digestFileRegion() throws IOException
+	{
+		return S3Digest.compute(this.file, 0, this.size);
+	}
+
+	@Benchmark
+	public S3Digest digestMappedFile()
+	{
+		return S3Digest.compute(this.mapped);
+	}
+}
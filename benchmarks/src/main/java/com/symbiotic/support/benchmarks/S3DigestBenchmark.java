@@ -0,0 +1,118 @@
+package com.symbiotic.support.benchmarks;
+
+import com.symbiotic.support.S3Digest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares how S3Connection prepares a file upload.
+ * The baseline is the old path: an MD5 through a 512 byte stream buffer, another open to check for gzip, and a third read to send.
+ * S3Digest computes the MD5 and the gzip check in one read, leaving only the read that sends the file.
+ * The file is in the page cache after the first iteration, so this measures the read overhead rather than the storage.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class S3DigestBenchmark
+{
+	@Param({ "4096", "1048576", "16777216" })
+	public int size;
+
+	private File file;
+
+	private static final OutputStream NULL_OUTPUT = new OutputStream() {
+		@Override
+		public void write(int b) {}
+
+		@Override
+		public void write(byte []b, int off, int len) {}
+	};
+
+	@Setup
+	public void setup() throws IOException
+	{
+		byte []data = new byte[this.size];
+		new Random(42).nextBytes(data);
+		this.file = File.createTempFile("s3digest", ".bin");
+		FileOutputStream out = new FileOutputStream(this.file);
+		out.write(data);
+		out.close();
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		this.file.delete();
+	}
+
+	@Benchmark
+	public byte []digestStream512() throws IOException, NoSuchAlgorithmException
+	{
+		InputStream in = new FileInputStream(this.file);
+		byte []bytes = new byte[512];
+		MessageDigest md = MessageDigest.getInstance("MD5");
+		int read;
+
+		while((read = in.read(bytes)) >= 0)
+			md.update(bytes, 0, read);
+		in.close();
+		return md.digest();
+	}
+
+	@Benchmark
+	public S3Digest digest() throws IOException
+	{
+		return S3Digest.compute(this.file);
+	}
+
+	@Benchmark
+	public boolean uploadReadsBefore() throws IOException, NoSuchAlgorithmException
+	{
+		byte []md5 = this.digestStream512();
+		InputStream in = new FileInputStream(this.file);
+		boolean gzip = in.read() == 0x1f && in.read() == 0x8b;
+		in.close();
+
+		// What FileEntity does to send the file
+		byte []buffer = new byte[4096];
+		int read;
+		in = new FileInputStream(this.file);
+		while((read = in.read(buffer)) >= 0)
+			NULL_OUTPUT.write(buffer, 0, read);
+		in.close();
+		return gzip && md5.length > 0;
+	}
+
+	@Benchmark
+	public boolean uploadReads() throws IOException
+	{
+		S3Digest digest = S3Digest.compute(this.file);
+		S3Digest.copy(this.file, 0, this.file.length(), NULL_OUTPUT);
+		return digest.isGzip();
+	}
+}
@@ -0,0 +1,25 @@
+package android.os;
+
+/**
+ * Stands in for the Android class in tests. Posted actions run straight away on the calling thread.
+ */
+public class Handler
+{
+	private final Looper looper;
+
+	public Handler(Looper looper)
+	{
+		this.looper = looper;
+	}
+
+	public final Looper getLooper()
+	{
+		return this.looper;
+	}
+
+	public final boolean post(Runnable action)
+	{
+		action.run();
+		return true;
+	}
+}
@@ -0,0 +1,19 @@
+package android.os;
+
+/**
+ * Stands in for the Android class in tests. Every thread is taken to be the main thread.
+ */
+public final class Looper
+{
+	private static final Looper MAIN = new Looper();
+
+	public static Looper getMainLooper()
+	{
+		return MAIN;
+	}
+
+	public static Looper myLooper()
+	{
+		return MAIN;
+	}
+}
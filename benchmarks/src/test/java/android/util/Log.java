@@ -0,0 +1,23 @@
+package android.util;
+
+/**
+ * Stands in for the Android class in tests, messages go to standard error.
+ */
+public final class Log
+{
+	public static int i(String tag, String message)
+	{
+		return println("I", tag, message);
+	}
+
+	public static int e(String tag, String message)
+	{
+		return println("E", tag, message);
+	}
+
+	private static int println(String priority, String tag, String message)
+	{
+		System.err.println(priority + "/" + tag + ": " + message);
+		return 0;
+	}
+}
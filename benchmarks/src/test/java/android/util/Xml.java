@@ -0,0 +1,25 @@
+package android.util;
+
+import org.kxml2.io.KXmlParser;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * Stands in for the Android class in tests with the same kXML parser Android uses, set up the same way.
+ */
+public final class Xml
+{
+	public static XmlPullParser newPullParser()
+	{
+		KXmlParser parser = new KXmlParser();
+		try
+		{
+			parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+		}
+		catch(XmlPullParserException e)
+		{
+			throw new RuntimeException(e);
+		}
+		return parser;
+	}
+}
@@ -0,0 +1,19 @@
+package android.webkit;
+
+/**
+ * Stands in for the Android class in tests, no extension has a known type.
+ */
+public class MimeTypeMap
+{
+	private static final MimeTypeMap SINGLETON = new MimeTypeMap();
+
+	public static MimeTypeMap getSingleton()
+	{
+		return SINGLETON;
+	}
+
+	public String getMimeTypeFromExtension(String extension)
+	{
+		return null;
+	}
+}
@@ -0,0 +1,643 @@
+package com.symbiotic.support;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class Base64Test
+{
+	private static String encoded(int size)
+	{
+		byte []data = new byte[size];
+		new Random(7).nextBytes(data);
+		return Base64.encode(data, Base64.NO_WRAP);
+	}
+
+	private static byte []random(int size)
+	{
+		byte []data = new byte[size];
+		new Random(size).nextBytes(data);
+		return data;
+	}
+
+	// Every length up to a few lines, so each remainder and each position of the last quantum is covered, and a few large ones
+	private static int []lengths()
+	{
+		int []lengths = new int[260];
+		for(int i = 0; i < 256; ++i)
+			lengths[i] = i;
+		lengths[256] = 1000;
+		lengths[257] = 4096;
+		lengths[258] = 65537;
+		lengths[259] = 100001;
+		return lengths;
+	}
+
+	private static String decodeError(String encoded, boolean parallel)
+	{
+		try
+		{
+			if(parallel)
+				Base64.decodeParallel(encoded, Base64.DEFAULT);
+			else
+				Base64.decode(encoded, Base64.DEFAULT);
+		}
+		catch(IOException e)
+		{
+			return e.getMessage();
+		}
+		fail("Decoded invalid input.");
+		return null;
+	}
+
+	private static String decodeError(byte []src, int offset, int length, boolean parallel)
+	{
+		byte []dst = new byte[length];
+		try
+		{
+			if(parallel)
+				Base64.decodeParallel(src, offset, length, dst, 0, Base64.DEFAULT, null);
+			else
+				Base64.decode(src, offset, length, dst, 0, Base64.DEFAULT);
+		}
+		catch(IOException e)
+		{
+			return e.getMessage();
+		}
+		fail("Decoded invalid input.");
+		return null;
+	}
+
+	@Test
+	public void parallelDecodeMatchesDecode() throws IOException
+	{
+		String encoded = encoded(1000000);
+
+		assertArrayEquals(Base64.decode(encoded), Base64.decodeParallel(encoded, Base64.DEFAULT));
+	}
+
+	// Every chunk of a large input reports errors at their offset in the whole input
+	@Test
+	public void parallelDecodeReportsOffsetInWholeInput()
+	{
+		String encoded = encoded(1000000);
+		int []positions = { 5, 39000, encoded.length() / 2 + 3, encoded.length() - 7 };
+
+		for(int position : positions)
+		{
+			String invalid = encoded.substring(0, position) + "*" + encoded.substring(position + 1);
+			String expected = String.format("Invalid character '*' at offset %d.", position);
+
+			assertEquals(expected, decodeError(invalid, false));
+			assertEquals(expected, decodeError(invalid, true));
+		}
+	}
+
+	@Test
+	public void parallelDecodeReportsPaddingLikeDecode()
+	{
+		String encoded = encoded(1000000);
+
+		// Padding at the end of every possible chunk and in the middle of one
+		for(int chunks = 2; chunks <= 8; ++chunks)
+		{
+			int position = ((encoded.length() / chunks + 4) / 4) * 4 - 1;
+			String invalid = encoded.substring(0, position) + "=" + encoded.substring(position + 1);
+
+			assertEquals(decodeError(invalid, false), decodeError(invalid, true));
+		}
+		String invalid = encoded.substring(0, 40001) + "=" + encoded.substring(40002);
+		assertEquals(decodeError(invalid, false), decodeError(invalid, true));
+	}
+
+	private static String decodeInPlaceError(String encoded, int flags) throws IOException
+	{
+		byte []buffer = encoded.getBytes("US-ASCII");
+		try
+		{
+			Base64.decode(buffer, 0, buffer.length, buffer, 0, flags);
+		}
+		catch(IOException e)
+		{
+			return e.getMessage();
+		}
+		fail("Decoded invalid input.");
+		return null;
+	}
+
+	// The decoded bytes overwrite the input, so errors have to be reported from what was read before that
+	@Test
+	public void inPlaceDecodeReportsErrorInInput() throws IOException
+	{
+		String encoded = encoded(3000);
+		String []invalid = {
+			"AAAAAAAA*AAA",
+			"AAAAAAAAAAAA====",
+			"AAAAAAAAA=AA",
+			"AAAAAAAAAA=*",
+			"AAAAAAAAAAA",
+			encoded.substring(0, 3001) + "\u0000" + encoded.substring(3002),
+			encoded + "=",
+		};
+
+		assertEquals("Invalid character '*' at offset 8.", decodeInPlaceError("AAAAAAAA*AAA", Base64.DEFAULT));
+		for(String input : invalid)
+			assertEquals(decodeError(input, false), decodeInPlaceError(input, Base64.DEFAULT));
+		assertEquals("Non-zero trailing bits in character at offset 9.", decodeInPlaceError("AAAAAAAAAB==", Base64.STRICT));
+	}
+
+	@Test
+	public void inPlaceDecodeMatchesDecode() throws IOException
+	{
+		String encoded = encoded(3000);
+		byte []buffer = encoded.getBytes("US-ASCII");
+		int written = Base64.decode(buffer, 0, buffer.length, buffer, 0);
+
+		assertArrayEquals(Base64.decode(encoded), Arrays.copyOf(buffer, written));
+	}
+
+	// Offsets are counted from the start of the range that is decoded
+	@Test
+	public void parallelDecodeOfRangeReportsOffsetInRange() throws IOException
+	{
+		byte []encoded = ("xxxx" + encoded(1000000) + "yyyy").getBytes("US-ASCII");
+		int length = encoded.length - 8;
+
+		encoded[4 + 987654] = '*';
+		assertEquals("Invalid character '*' at offset 987654.", decodeError(encoded, 4, length, false));
+		assertEquals("Invalid character '*' at offset 987654.", decodeError(encoded, 4, length, true));
+	}
+
+	@Test
+	public void encodeMatchesJavaUtil()
+	{
+		for(int length : lengths())
+		{
+			byte []data = random(length);
+			assertEquals(java.util.Base64.getEncoder().encodeToString(data), Base64.encode(data));
+		}
+	}
+
+	@Test
+	public void decodeMatchesJavaUtil() throws IOException
+	{
+		for(int length : lengths())
+		{
+			byte []data = random(length);
+			assertArrayEquals(data, Base64.decode(java.util.Base64.getEncoder().encodeToString(data)));
+		}
+	}
+
+	// Every byte value in every position of a quantum
+	@Test
+	public void roundTripsEveryByte() throws IOException
+	{
+		byte []data = new byte[256 * 3];
+		for(int i = 0; i < 256; ++i)
+			data[i] = data[256 + (i + 1) % 256] = data[512 + (i + 2) % 256] = (byte)i;
+
+		for(int length = 0; length <= data.length; ++length)
+		{
+			byte []range = Arrays.copyOf(data, length);
+			assertArrayEquals(range, Base64.decode(Base64.encode(range)));
+		}
+	}
+
+	@Test
+	public void lengthsMatchOutput()
+	{
+		for(int length : lengths())
+		{
+			String encoded = Base64.encode(random(length));
+			assertEquals(encoded.length(), Base64.encodedLength(length));
+			assertTrue(Base64.decodedLength(encoded.length()) >= length);
+		}
+	}
+
+	// Lengths for the range and buffer overloads, every remainder around a few quanta and one larger than the chunk size of the loops
+	private static final int []RANGE_LENGTHS = { 0, 1, 2, 3, 4, 5, 6, 7, 57, 58, 59, 60, 1000, 8193 };
+
+	// A slice of a larger array, so a range that does not start at 0 or end at the end of the array is encoded
+	private static byte []surrounded(byte []data, int before, int after)
+	{
+		byte []array = new byte[before + data.length + after];
+		Arrays.fill(array, (byte)'*');
+		System.arraycopy(data, 0, array, before, data.length);
+		return array;
+	}
+
+	@Test
+	public void rangeEncodeMatchesJavaUtil() throws IOException
+	{
+		for(int length : RANGE_LENGTHS)
+		{
+			byte []data = random(length);
+			byte []array = surrounded(data, 5, 3);
+			String expected = java.util.Base64.getEncoder().encodeToString(data);
+			char []chars = new char[expected.length() + 4];
+			byte []bytes = new byte[expected.length() + 4];
+
+			assertEquals(expected, Base64.encode(array, 5, length));
+			assertEquals(expected.length(), Base64.encode(array, 5, length, chars, 2));
+			assertEquals(expected, new String(chars, 2, expected.length()));
+			assertEquals(expected.length(), Base64.encode(array, 5, length, bytes, 3));
+			assertEquals(expected, new String(bytes, 3, expected.length(), "US-ASCII"));
+		}
+	}
+
+	@Test
+	public void rangeDecodeMatchesJavaUtil() throws IOException
+	{
+		for(int length : RANGE_LENGTHS)
+		{
+			byte []data = random(length);
+			String encoded = "**" + java.util.Base64.getEncoder().encodeToString(data) + "***";
+			int size = encoded.length() - 5;
+			byte []dst = new byte[length + 4];
+
+			assertEquals(length, Base64.decode(encoded, 2, size, dst, 1));
+			assertArrayEquals(data, Arrays.copyOfRange(dst, 1, 1 + length));
+			assertEquals(length, Base64.decode(encoded.toCharArray(), 2, size, dst, 3));
+			assertArrayEquals(data, Arrays.copyOfRange(dst, 3, 3 + length));
+			assertEquals(length, Base64.decode(encoded.getBytes("US-ASCII"), 2, size, dst, 0));
+			assertArrayEquals(data, Arrays.copyOf(dst, length));
+		}
+	}
+
+	// Heap buffers with an array offset, direct buffers, and each mixed with the other
+	private static ByteBuffer buffer(int capacity, boolean direct)
+	{
+		if(direct)
+			return ByteBuffer.allocateDirect(capacity);
+		ByteBuffer buffer = ByteBuffer.allocate(capacity + 7);
+		buffer.position(7);
+		return buffer.slice();
+	}
+
+	// The remaining bytes of a buffer with something before its position and after its limit
+	private static ByteBuffer buffer(byte []data, boolean direct)
+	{
+		ByteBuffer buffer = buffer(data.length + 5, direct);
+		buffer.put(surrounded(data, 2, 3));
+		buffer.position(2);
+		buffer.limit(2 + data.length);
+		return buffer;
+	}
+
+	private static byte []remaining(ByteBuffer buffer)
+	{
+		byte []bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return bytes;
+	}
+
+	@Test
+	public void bufferEncodeMatchesJavaUtil() throws IOException
+	{
+		for(int length : RANGE_LENGTHS)
+		{
+			byte []data = random(length);
+			byte []expected = java.util.Base64.getEncoder().encode(data);
+
+			for(int kind = 0; kind < 4; ++kind)
+			{
+				ByteBuffer src = buffer(data, (kind & 1) != 0);
+				ByteBuffer dst = buffer(expected.length + 6, (kind & 2) != 0);
+
+				dst.position(4);
+				assertEquals(expected.length, Base64.encode(src, dst));
+				assertEquals(0, src.remaining());
+				assertEquals(4 + expected.length, dst.position());
+				dst.flip();
+				dst.position(4);
+				assertArrayEquals(expected, remaining(dst));
+			}
+		}
+	}
+
+	@Test
+	public void bufferDecodeMatchesJavaUtil() throws IOException
+	{
+		for(int length : RANGE_LENGTHS)
+		{
+			byte []data = random(length);
+			byte []encoded = java.util.Base64.getEncoder().encode(data);
+
+			for(int kind = 0; kind < 4; ++kind)
+			{
+				ByteBuffer src = buffer(encoded, (kind & 1) != 0);
+				ByteBuffer dst = buffer(length + 6, (kind & 2) != 0);
+
+				dst.position(4);
+				assertEquals(length, Base64.decode(src, dst));
+				assertEquals(0, src.remaining());
+				assertEquals(4 + length, dst.position());
+				dst.flip();
+				dst.position(4);
+				assertArrayEquals(data, remaining(dst));
+			}
+		}
+	}
+
+	@Test
+	public void bufferWithoutRoomIsLeftAlone() throws IOException
+	{
+		for(int kind = 0; kind < 4; ++kind)
+		{
+			ByteBuffer src = buffer(random(30), (kind & 1) != 0);
+			ByteBuffer dst = buffer(39, (kind & 2) != 0);
+
+			try
+			{
+				Base64.encode(src, dst);
+				fail("Encoded into a buffer without room.");
+			}
+			catch(BufferOverflowException e)
+			{
+				// Expected
+			}
+			assertEquals(30, src.remaining());
+			assertEquals(0, dst.position());
+
+			src = buffer(java.util.Base64.getEncoder().encode(random(30)), (kind & 1) != 0);
+			dst = buffer(29, (kind & 2) != 0);
+			try
+			{
+				Base64.decode(src, dst);
+				fail("Decoded into a buffer without room.");
+			}
+			catch(BufferOverflowException e)
+			{
+				// Expected
+			}
+			assertEquals(40, src.remaining());
+			assertEquals(0, dst.position());
+		}
+	}
+
+	// Sizes that split quanta and the streams' own chunks at every offset
+	private static final int []CHUNK_SIZES = { 1, 2, 3, 5, 7, 13, 4095, 4097 };
+	private static final int []STREAM_LENGTHS = { 0, 1, 2, 3, 4, 5, 4095, 4096, 4097, 12289, 100001 };
+
+	// Returns at most limit bytes from each read, like a socket that delivers data in small pieces
+	private static final class ShortReadInputStream extends FilterInputStream
+	{
+		private final int limit;
+
+		ShortReadInputStream(InputStream in, int limit)
+		{
+			super(in);
+			this.limit = limit;
+		}
+
+		@Override
+		public int read(byte []b, int offset, int length) throws IOException
+		{
+			return this.in.read(b, offset, Math.min(length, this.limit));
+		}
+	}
+
+	// Writes data to the encoder in pieces of chunkSize bytes, single bytes through write(int)
+	private static byte []encodeStream(byte []data, int chunkSize, int flags) throws IOException
+	{
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		OutputStream out = Base64.wrapEncoder(encoded, flags);
+
+		for(int offset = 0; offset < data.length; offset += chunkSize)
+		{
+			if(chunkSize == 1)
+				out.write(data[offset]);
+			else
+				out.write(data, offset, Math.min(chunkSize, data.length - offset));
+		}
+		out.close();
+		return encoded.toByteArray();
+	}
+
+	// Reads the decoder in pieces of chunkSize bytes from a source that returns no more than that in each read
+	private static byte []decodeStream(byte []encoded, int chunkSize, int flags) throws IOException
+	{
+		ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+		InputStream in = Base64.wrapDecoder(new ShortReadInputStream(new ByteArrayInputStream(encoded), chunkSize), flags);
+		byte []buffer = new byte[chunkSize];
+		int read;
+
+		if(chunkSize == 1)
+		{
+			while((read = in.read()) >= 0)
+				decoded.write(read);
+		}
+		else
+		{
+			while((read = in.read(buffer)) >= 0)
+				decoded.write(buffer, 0, read);
+		}
+		in.close();
+		return decoded.toByteArray();
+	}
+
+	@Test
+	public void outputStreamMatchesJavaUtil() throws IOException
+	{
+		for(int length : STREAM_LENGTHS)
+		{
+			byte []data = random(length);
+			byte []expected = java.util.Base64.getEncoder().encode(data);
+
+			for(int chunkSize : CHUNK_SIZES)
+				assertArrayEquals(expected, encodeStream(data, chunkSize, Base64.DEFAULT));
+		}
+	}
+
+	@Test
+	public void inputStreamMatchesJavaUtil() throws IOException
+	{
+		for(int length : STREAM_LENGTHS)
+		{
+			byte []data = random(length);
+			byte []encoded = java.util.Base64.getEncoder().encode(data);
+
+			for(int chunkSize : CHUNK_SIZES)
+				assertArrayEquals(data, decodeStream(encoded, chunkSize, Base64.DEFAULT));
+		}
+	}
+
+	@Test
+	public void streamsRoundTrip() throws IOException
+	{
+		byte []data = random(100001);
+
+		// Written and read in different sizes, so the encoder's pieces do not line up with the decoder's
+		for(int i = 0; i < CHUNK_SIZES.length; ++i)
+			assertArrayEquals(data, decodeStream(encodeStream(data, CHUNK_SIZES[i], Base64.DEFAULT), CHUNK_SIZES[(i + 3) % CHUNK_SIZES.length], Base64.DEFAULT));
+	}
+
+	@Test
+	public void inputStreamReportsTruncatedData() throws IOException
+	{
+		byte []encoded = java.util.Base64.getEncoder().encode(random(5000));
+
+		for(int chunkSize : CHUNK_SIZES)
+		{
+			try
+			{
+				decodeStream(Arrays.copyOf(encoded, encoded.length - 3), chunkSize, Base64.DEFAULT);
+				fail("Decoded truncated data.");
+			}
+			catch(IOException e)
+			{
+				// Expected
+			}
+		}
+	}
+
+	private static final int []VARIANTS = {
+		Base64.NO_WRAP,
+		Base64.URL_SAFE,
+		Base64.NO_PADDING,
+		Base64.URL_SAFE | Base64.NO_PADDING,
+		Base64.WRAP,
+		Base64.CRLF,
+		Base64.URL_SAFE | Base64.NO_PADDING | Base64.CRLF,
+	};
+
+	// The java.util.Base64 encoder that gives the same output as flags
+	private static java.util.Base64.Encoder javaEncoder(int flags)
+	{
+		java.util.Base64.Encoder encoder;
+
+		if((flags & Base64.CRLF) != 0)
+			encoder = java.util.Base64.getMimeEncoder();
+		else if((flags & Base64.WRAP) != 0)
+			encoder = java.util.Base64.getMimeEncoder(76, new byte[] { '\n' });
+		else
+			encoder = java.util.Base64.getEncoder();
+		if((flags & Base64.NO_PADDING) != 0)
+			encoder = encoder.withoutPadding();
+		return encoder;
+	}
+
+	// The MIME encoders of java.util.Base64 only use the standard alphabet
+	private static String javaEncode(byte []data, int flags)
+	{
+		String encoded = javaEncoder(flags).encodeToString(data);
+		return (flags & Base64.URL_SAFE) != 0 ? encoded.replace('+', '-').replace('/', '_') : encoded;
+	}
+
+	// Wrapped lines are decoded leniently, the way MIME bodies are
+	private static int decodeFlags(int flags)
+	{
+		return (flags & (Base64.WRAP | Base64.CRLF)) != 0 ? flags | Base64.LENIENT : flags;
+	}
+
+	@Test
+	public void variantsMatchJavaUtil() throws IOException
+	{
+		for(int flags : VARIANTS)
+		{
+			for(int length : lengths())
+			{
+				byte []data = random(length);
+				String expected = javaEncode(data, flags);
+
+				assertEquals(expected, Base64.encode(data, flags));
+				assertEquals(expected.length(), Base64.encodedLength(length, flags));
+				assertArrayEquals(data, Base64.decode(expected, decodeFlags(flags)));
+			}
+		}
+	}
+
+	@Test
+	public void variantsMatchJavaUtilDecoders() throws IOException
+	{
+		for(int length : lengths())
+		{
+			byte []data = random(length);
+
+			assertArrayEquals(java.util.Base64.getUrlDecoder().decode(Base64.encode(data, Base64.URL_SAFE)), data);
+			assertArrayEquals(java.util.Base64.getUrlDecoder().decode(Base64.encode(data, Base64.URL_SAFE | Base64.NO_PADDING)), data);
+			assertArrayEquals(java.util.Base64.getMimeDecoder().decode(Base64.encode(data, Base64.CRLF)), data);
+			assertArrayEquals(data, Base64.decode(java.util.Base64.getUrlEncoder().withoutPadding().encodeToString(data), Base64.URL_SAFE | Base64.NO_PADDING));
+			assertArrayEquals(data, Base64.decode(java.util.Base64.getMimeEncoder().encodeToString(data), Base64.MIME));
+		}
+	}
+
+	@Test
+	public void variantsThroughRangesAndBuffers() throws IOException
+	{
+		for(int flags : VARIANTS)
+		{
+			for(int length : RANGE_LENGTHS)
+			{
+				byte []data = random(length);
+				byte []expected = javaEncode(data, flags).getBytes("US-ASCII");
+				byte []bytes = new byte[expected.length + 3];
+				// Lenient decoding needs room for the most the input could decode to
+				byte []decoded = new byte[2 + Base64.decodedLength(expected.length)];
+				ByteBuffer dst = ByteBuffer.allocateDirect(expected.length);
+
+				assertEquals(expected.length, Base64.encode(surrounded(data, 5, 3), 5, length, bytes, 3, flags));
+				assertArrayEquals(expected, Arrays.copyOfRange(bytes, 3, 3 + expected.length));
+				assertEquals(length, Base64.decode(bytes, 3, expected.length, decoded, 2, decodeFlags(flags)));
+				assertArrayEquals(data, Arrays.copyOfRange(decoded, 2, 2 + length));
+
+				assertEquals(expected.length, Base64.encode(buffer(data, true), dst, flags));
+				dst.flip();
+				assertArrayEquals(expected, remaining(dst));
+			}
+		}
+	}
+
+	@Test
+	public void variantsThroughStreams() throws IOException
+	{
+		for(int flags : VARIANTS)
+		{
+			for(int length : STREAM_LENGTHS)
+			{
+				byte []data = random(length);
+				byte []expected = javaEncode(data, flags).getBytes("US-ASCII");
+
+				for(int chunkSize : CHUNK_SIZES)
+				{
+					assertArrayEquals(expected, encodeStream(data, chunkSize, flags));
+					assertArrayEquals(data, decodeStream(expected, chunkSize, decodeFlags(flags)));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void variantCharactersAreRejectedByDefault()
+	{
+		String []invalid = { "ab-_", "ab+/", "YWJj\r\nZGVm", "YWJjZA" };
+		int []flags = { Base64.DEFAULT, Base64.URL_SAFE, Base64.DEFAULT, Base64.DEFAULT };
+
+		for(int i = 0; i < invalid.length; ++i)
+		{
+			try
+			{
+				Base64.decode(invalid[i], flags[i]);
+				fail("Decoded " + invalid[i] + ".");
+			}
+			catch(IOException e)
+			{
+				// Expected
+			}
+		}
+	}
+}
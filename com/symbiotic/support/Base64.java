@@ -1,145 +1,1276 @@
 package com.symbiotic.support;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Base64 class to encode and decode data.
  * Created because android.util.Base64 is level 8+
+ *
+ * Besides the String based methods, data can be encoded and decoded between
+ * ranges of caller supplied arrays and ByteBuffers so buffers can be reused.
+ * Those methods return the number of bytes or characters written.
+ *
+ * Large data should be streamed with wrapEncoder and wrapDecoder, which only
+ * keep a fixed size chunk in memory no matter how much data passes through.
+ *
+ * Every method optionally takes a combination of the flags below to select
+ * the URL safe alphabet, drop padding, wrap lines MIME style or skip
+ * whitespace when decoding. Variants are handled in the same single pass.
+ *
+ * encodeParallel and decodeParallel split large data on quantum boundaries and
+ * process the chunks on several threads. Data shorter than the parallel
+ * threshold is handled on the calling thread.
  */
 public final class Base64
 {
-	private static char mapValue(int value)
-	{
-		if(value < 26)
-			return (char)(value + 65);
-		else if(value < 52)
-			return (char)((value - 26) + 97);
-		else if(value < 62)
-			return (char)((value - 52) + 48);
-		else if(value == 62)
-			return '+';
-		else
-			return '/';
-	}
-	
-	private static String mapBits(byte []bits)
-	{
-		StringBuilder stringBuilder = new StringBuilder();
-		int i, value = 0;
-		
-		for(i = 0; i < bits.length; ++i)
-			value = (value << 8) | ((int)bits[i] & 0xFF);
-				
-		if(bits.length == 2)
-			value = (value << 2);
-		else if(bits.length == 1)
-			value = (value << 4);
-		
-		for(i = bits.length * 6; i >= 0; i -= 6)
-			stringBuilder.append(mapValue((value >> i) & 0x3F));
-		
-		if(bits.length == 2)
-			stringBuilder.append('=');
-		else if(bits.length == 1)
-			stringBuilder.append("==");
-		
-		return stringBuilder.toString();
-	}
-	
-	private static int mapChar(char c) throws IOException
-	{
-		if((c >= 'A') && (c <= 'Z'))
-			return c - 'A';
-		else if((c >= 'a') && (c <= 'z'))
-			return c - 'a' + 26;
-		else if((c >= '0') && (c <= '9'))
-			return c - '0' + 52;
-		else if(c == '+')
-			return 62;
-		else if(c == '/')
-			return 63;
+	/** Standard alphabet with padding and no line wrapping. */
+	public static final int DEFAULT = 0;
+	/** Uses '-' and '_' instead of '+' and '/' (RFC 4648 section 5). */
+	public static final int URL_SAFE = (1<<0);
+	/** Omits the trailing '=' when encoding, and accepts unpadded input when decoding. */
+	public static final int NO_PADDING = (1<<1);
+	/** Output is never wrapped unless WRAP or CRLF is given, kept for readability at call sites. */
+	public static final int NO_WRAP = 0;
+	/** Wraps encoded output into 76 character lines separated by '\n'. */
+	public static final int WRAP = (1<<2);
+	/** Wraps encoded output into 76 character lines separated by "\r\n" as required by MIME. */
+	public static final int CRLF = (1<<3);
+	/** Skips whitespace (space, tab, CR and LF) when decoding. */
+	public static final int LENIENT = (1<<4);
+	/** Rejects encodings whose unused trailing bits are not zero, so every byte sequence has exactly one accepted encoding. */
+	public static final int STRICT = (1<<5);
+
+	/** Flags for MIME bodies: CRLF wrapped lines, decoded leniently. */
+	public static final int MIME = CRLF | LENIENT;
+
+	private static final char PAD = '=';
+	private static final int LINE_LENGTH = 76;
+	// Number of input bytes that encode to one full line
+	private static final int LINE_BYTES = (LINE_LENGTH / 4) * 3;
+
+	// Values in the decode tables for characters that are not part of the alphabet
+	private static final byte INVALID = -1;
+	private static final byte WHITESPACE = -2;
+
+	// Kinds of decode errors found by validate
+	private static final int ERROR_CHARACTER = 1;
+	private static final int ERROR_PADDING = 2;
+	private static final int ERROR_TRAILING_BITS = 3;
+	private static final int ERROR_TRUNCATED = 4;
+
+	private static final char []STANDARD_ENCODE = {
+		'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M', 'N', 'O', 'P',
+		'Q', 'R', 'S', 'T', 'U', 'V', 'W', 'X', 'Y', 'Z', 'a', 'b', 'c', 'd', 'e', 'f',
+		'g', 'h', 'i', 'j', 'k', 'l', 'm', 'n', 'o', 'p', 'q', 'r', 's', 't', 'u', 'v',
+		'w', 'x', 'y', 'z', '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', '+', '/'
+	};
+
+	private static final char []URL_SAFE_ENCODE = {
+		'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M', 'N', 'O', 'P',
+		'Q', 'R', 'S', 'T', 'U', 'V', 'W', 'X', 'Y', 'Z', 'a', 'b', 'c', 'd', 'e', 'f',
+		'g', 'h', 'i', 'j', 'k', 'l', 'm', 'n', 'o', 'p', 'q', 'r', 's', 't', 'u', 'v',
+		'w', 'x', 'y', 'z', '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', '-', '_'
+	};
+
+	private static final byte []STANDARD_ENCODE_BYTES = new byte[64];
+	private static final byte []URL_SAFE_ENCODE_BYTES = new byte[64];
+	private static final byte []STANDARD_DECODE = new byte[256];
+	private static final byte []URL_SAFE_DECODE = new byte[256];
+
+	static
+	{
+		for(int i = 0; i < 256; ++i)
+		{
+			STANDARD_DECODE[i] = INVALID;
+			URL_SAFE_DECODE[i] = INVALID;
+		}
+		for(int i = 0; i < 64; ++i)
+		{
+			STANDARD_ENCODE_BYTES[i] = (byte)STANDARD_ENCODE[i];
+			URL_SAFE_ENCODE_BYTES[i] = (byte)URL_SAFE_ENCODE[i];
+			STANDARD_DECODE[STANDARD_ENCODE[i]] = (byte)i;
+			URL_SAFE_DECODE[URL_SAFE_ENCODE[i]] = (byte)i;
+		}
+		for(char c : new char[] { ' ', '\t', '\r', '\n' })
+		{
+			STANDARD_DECODE[c] = WHITESPACE;
+			URL_SAFE_DECODE[c] = WHITESPACE;
+		}
+	}
+
+	private static volatile int parallelThreshold = 512 * 1024;
+	private static ExecutorService parallelExecutor;
+
+	private Base64()
+	{
+	}
+
+	private static char []encodeTable(int flags)
+	{
+		return (flags & URL_SAFE) != 0 ? URL_SAFE_ENCODE : STANDARD_ENCODE;
+	}
+
+	private static byte []encodeBytesTable(int flags)
+	{
+		return (flags & URL_SAFE) != 0 ? URL_SAFE_ENCODE_BYTES : STANDARD_ENCODE_BYTES;
+	}
+
+	private static byte []decodeTable(int flags)
+	{
+		return (flags & URL_SAFE) != 0 ? URL_SAFE_DECODE : STANDARD_DECODE;
+	}
+
+	/**
+	 * Returns the number of characters needed to encode length bytes.
+	 */
+	public static int encodedLength(int length)
+	{
+		return encodedLength(length, DEFAULT);
+	}
+
+	public static int encodedLength(int length, int flags)
+	{
+		int chars;
+
+		if((flags & NO_PADDING) != 0)
+			chars = (length / 3) * 4 + ((length % 3) == 0 ? 0 : (length % 3) + 1);
 		else
-			throw new IOException();
+			chars = ((length + 2) / 3) * 4;
+		if((flags & (WRAP | CRLF)) != 0 && chars > 0)
+			chars += ((chars - 1) / LINE_LENGTH) * ((flags & CRLF) != 0 ? 2 : 1);
+		return chars;
 	}
-	
-	private static byte []mapChars(String substr) throws IOException
+
+	/**
+	 * Returns the largest number of bytes that length characters can decode to.
+	 */
+	public static int decodedLength(int length)
+	{
+		return (length / 4) * 3 + ((length % 4) > 1 ? (length % 4) - 1 : 0);
+	}
+
+	private static void checkRange(int arrayLength, int offset, int length)
+	{
+		if(offset < 0 || length < 0 || offset > arrayLength - length)
+			throw new IndexOutOfBoundsException();
+	}
+
+	private static void checkSpace(int arrayLength, int offset, int needed)
+	{
+		if(offset < 0 || offset > arrayLength)
+			throw new IndexOutOfBoundsException();
+		if(arrayLength - offset < needed)
+			throw new IllegalArgumentException("Destination is too small, " + needed + " needed.");
+	}
+
+	// Exact decoded size for input without whitespace, or an upper bound when decoding leniently
+	private static int decodedSize(int length, int last, int secondLast, int flags)
 	{
-		int i, value = 0;
-		byte []bits;
-		
-		for(i = 0; i < substr.length(); ++i)
+		int size = decodedLength(length);
+		if((flags & LENIENT) == 0 && (length % 4) == 0)
 		{
-			if(substr.charAt(i) == '=')
+			if(secondLast == PAD)
+				size -= 2;
+			else if(last == PAD)
+				size -= 1;
+		}
+		return size;
+	}
+
+	// Returns the bytes of a final partial quantum aligned to the top of 24 bits with the byte count in the top byte, or a negative value if invalid
+	private static int finalQuantum(int bits, int count, int pads, int flags)
+	{
+		boolean optional = (flags & NO_PADDING) != 0;
+		boolean strict = (flags & STRICT) != 0;
+
+		if(count == 0)
+			return pads == 0 ? 0 : -1;
+		else if(count == 2 && (pads == 2 || (pads == 0 && optional)))
+			return (strict && (bits & 0xF) != 0) ? -1 : (1 << 24) | (bits << 12);
+		else if(count == 3 && (pads == 1 || (pads == 0 && optional)))
+			return (strict && (bits & 0x3) != 0) ? -1 : (2 << 24) | (bits << 6);
+		return -1;
+	}
+
+	/**
+	 * Scans a range of encoded data without decoding it, following the same rules as decode.
+	 * Returns -1 if it is valid, otherwise the error kind in the high 32 bits and its index in the low 32 bits.
+	 */
+	private static long validate(CharSequence src, int offset, int length, int flags)
+	{
+		final byte []table = decodeTable(flags);
+		final boolean lenient = (flags & LENIENT) != 0;
+		int end = offset + length;
+		int count = 0, pads = 0, last = 0, lastIndex = -1;
+		int c, i, value;
+
+		for(i = offset; i < end; ++i)
+		{
+			c = src.charAt(i);
+			value = c > 0xFF ? INVALID : table[c];
+			if(value >= 0)
+			{
+				count = (count + 1) & 3;
+				last = value;
+				lastIndex = i;
+			}
+			else if(c == PAD)
+			{
+				if(count < 2)
+					return ((long)ERROR_PADDING << 32) | i;
+				// Only the rest of the padding, or whitespace when lenient, may follow
+				for(pads = 1, ++i; i < end; ++i)
+				{
+					c = src.charAt(i);
+					if(c == PAD)
+					{
+						if(++pads > 4 - count)
+							return ((long)ERROR_PADDING << 32) | i;
+					}
+					else if(!lenient || c > 0xFF || table[c] != WHITESPACE)
+						return ((long)ERROR_CHARACTER << 32) | i;
+				}
+				if(pads != 4 - count)
+					return ((long)ERROR_TRUNCATED << 32) | end;
 				break;
-			value = (value << 6) | mapChar(substr.charAt(i));
+			}
+			else if(!lenient || value != WHITESPACE)
+				return ((long)ERROR_CHARACTER << 32) | i;
 		}
-		
-		if(i == 2)
+
+		if(count == 1 || (count > 1 && pads == 0 && (flags & NO_PADDING) == 0))
+			return ((long)ERROR_TRUNCATED << 32) | end;
+		// Bits past the last full byte must be zero for the encoding to be canonical
+		if((flags & STRICT) != 0 && ((count == 2 && (last & 0xF) != 0) || (count == 3 && (last & 0x3) != 0)))
+			return ((long)ERROR_TRAILING_BITS << 32) | lastIndex;
+		return -1;
+	}
+
+	// Builds the exception for data that failed to decode by scanning it again, src must not have been overwritten by the output
+	private static IOException decodeError(CharSequence src, int offset, int length, int flags)
+	{
+		long error = validate(src, offset, length, flags);
+		int kind = (int)(error >>> 32), index = (int)error;
+
+		return decodeError(kind, index, offset, kind == ERROR_CHARACTER ? src.charAt(index) : 0);
+	}
+
+	// Builds the exception for an error found at index while decoding, c is the character there for ERROR_CHARACTER
+	private static IOException decodeError(int kind, int index, int offset, int c)
+	{
+		int position = index - offset;
+
+		switch(kind)
 		{
-			bits = new byte[1];
-			bits[0] = (byte)((value >> 4) & 0xFF);
+			case ERROR_CHARACTER:
+				if(c > ' ' && c < 0x7F)
+					return new IOException(String.format("Invalid character '%c' at offset %d.", (char)c, position));
+				return new IOException(String.format("Invalid character 0x%02X at offset %d.", c, position));
+			case ERROR_PADDING:
+				return new IOException(String.format("Invalid padding at offset %d.", position));
+			case ERROR_TRAILING_BITS:
+				return new IOException(String.format("Non-zero trailing bits in character at offset %d.", position));
+			case ERROR_TRUNCATED:
+				return new IOException(String.format("Incomplete quantum at end of input, offset %d.", position));
+			default:
+				return new IOException("Invalid base64 data.");
 		}
-		else if(i == 3)
+	}
+
+	// Views ASCII bytes as characters so errors in byte input can be reported, only used on the error path
+	private static final class AsciiSequence implements CharSequence
+	{
+		private final ByteBuffer bytes;
+
+		AsciiSequence(ByteBuffer bytes)
 		{
-			bits = new byte[2];
-			bits[1] = (byte)((value >> 2) & 0xFF);
-			bits[0] = (byte)((value >> 10) & 0xFF);
+			this.bytes = bytes;
 		}
-		else
+
+		public char charAt(int index)
+		{
+			return (char)(this.bytes.get(index) & 0xFF);
+		}
+
+		public int length()
 		{
-			bits = new byte[3];
-			bits[2] = (byte)(value & 0xFF);
-			bits[1] = (byte)((value >> 8) & 0xFF);
-			bits[0] = (byte)((value >> 16) & 0xFF);
+			return this.bytes.limit();
+		}
+
+		public CharSequence subSequence(int start, int end)
+		{
+			StringBuilder builder = new StringBuilder(end - start);
+			for(int i = start; i < end; ++i)
+				builder.append(charAt(i));
+			return builder;
 		}
-		
-		return bits;
 	}
-	
-	public static String encode(byte []data)
+
+	/**
+	 * Checks whether base64Str decodes without error, without allocating or throwing.
+	 */
+	public static boolean isValid(CharSequence base64Str)
 	{
-		StringBuilder encodedString = new StringBuilder();
-		byte []bits = new byte[3];
-		for(int i = 0; i < (data.length - (data.length % 3)); i += 3)
+		return validate(base64Str, 0, base64Str.length(), DEFAULT) < 0;
+	}
+
+	public static boolean isValid(CharSequence base64Str, int flags)
+	{
+		return validate(base64Str, 0, base64Str.length(), flags) < 0;
+	}
+
+	/**
+	 * Removes whitespace from a range of ASCII encoded data in place and returns the new length.
+	 */
+	static int stripWhitespace(byte []data, int offset, int length)
+	{
+		final byte []table = STANDARD_DECODE;
+		int end = offset + length;
+		int j = offset;
+
+		for(int i = offset; i < end; ++i)
 		{
-			bits[0] = data[i];
-			bits[1] = data[i + 1];
-			bits[2] = data[i + 2];
-			encodedString.append(mapBits(bits));
+			if(table[data[i] & 0xFF] != WHITESPACE)
+				data[j++] = data[i];
 		}
-		
-		if((data.length % 3) == 1)
-			encodedString.append(mapBits(new byte[] { data[data.length - 1] }));
-		else if((data.length % 3) == 2)
-			encodedString.append(mapBits(new byte[] { data[data.length - 2], data[data.length - 1] }));
-		
-		return encodedString.toString();
+		return j - offset;
 	}
-	
+
+	private static int encodeRange(byte []src, int offset, int length, char []dst, int dstOffset, int flags)
+	{
+		final char []table = encodeTable(flags);
+		final boolean wrap = (flags & (WRAP | CRLF)) != 0;
+		final boolean crlf = (flags & CRLF) != 0;
+		final boolean pad = (flags & NO_PADDING) == 0;
+		int end = offset + length;
+		int groupsEnd = end - (length % 3);
+		int i = offset, j = dstOffset;
+		int lineEnd, value;
+
+		while(i < groupsEnd)
+		{
+			lineEnd = (wrap && groupsEnd - i > LINE_BYTES) ? i + LINE_BYTES : groupsEnd;
+
+			// Full 3-byte groups map straight to 4 characters
+			while(i < lineEnd)
+			{
+				value = ((src[i] & 0xFF) << 16) | ((src[i + 1] & 0xFF) << 8) | (src[i + 2] & 0xFF);
+				i += 3;
+				dst[j++] = table[(value >>> 18) & 0x3F];
+				dst[j++] = table[(value >>> 12) & 0x3F];
+				dst[j++] = table[(value >>> 6) & 0x3F];
+				dst[j++] = table[value & 0x3F];
+			}
+
+			// Separate full lines that are followed by more output
+			if(wrap && i < end && ((i - offset) % LINE_BYTES) == 0)
+			{
+				if(crlf)
+					dst[j++] = '\r';
+				dst[j++] = '\n';
+			}
+		}
+
+		// Trailing 1 or 2 bytes are padded out to a full quantum
+		if((length % 3) == 1)
+		{
+			value = src[i] & 0xFF;
+			dst[j++] = table[value >>> 2];
+			dst[j++] = table[(value << 4) & 0x3F];
+			if(pad)
+			{
+				dst[j++] = PAD;
+				dst[j++] = PAD;
+			}
+		}
+		else if((length % 3) == 2)
+		{
+			value = ((src[i] & 0xFF) << 8) | (src[i + 1] & 0xFF);
+			dst[j++] = table[value >>> 10];
+			dst[j++] = table[(value >>> 4) & 0x3F];
+			dst[j++] = table[(value << 2) & 0x3F];
+			if(pad)
+				dst[j++] = PAD;
+		}
+
+		return j - dstOffset;
+	}
+
+	static int encodeRange(byte []src, int offset, int length, byte []dst, int dstOffset, int flags)
+	{
+		final byte []table = encodeBytesTable(flags);
+		final boolean wrap = (flags & (WRAP | CRLF)) != 0;
+		final boolean crlf = (flags & CRLF) != 0;
+		final boolean pad = (flags & NO_PADDING) == 0;
+		int end = offset + length;
+		int groupsEnd = end - (length % 3);
+		int i = offset, j = dstOffset;
+		int lineEnd, value;
+
+		while(i < groupsEnd)
+		{
+			lineEnd = (wrap && groupsEnd - i > LINE_BYTES) ? i + LINE_BYTES : groupsEnd;
+
+			while(i < lineEnd)
+			{
+				value = ((src[i] & 0xFF) << 16) | ((src[i + 1] & 0xFF) << 8) | (src[i + 2] & 0xFF);
+				i += 3;
+				dst[j++] = table[(value >>> 18) & 0x3F];
+				dst[j++] = table[(value >>> 12) & 0x3F];
+				dst[j++] = table[(value >>> 6) & 0x3F];
+				dst[j++] = table[value & 0x3F];
+			}
+
+			if(wrap && i < end && ((i - offset) % LINE_BYTES) == 0)
+			{
+				if(crlf)
+					dst[j++] = '\r';
+				dst[j++] = '\n';
+			}
+		}
+
+		if((length % 3) == 1)
+		{
+			value = src[i] & 0xFF;
+			dst[j++] = table[value >>> 2];
+			dst[j++] = table[(value << 4) & 0x3F];
+			if(pad)
+			{
+				dst[j++] = (byte)PAD;
+				dst[j++] = (byte)PAD;
+			}
+		}
+		else if((length % 3) == 2)
+		{
+			value = ((src[i] & 0xFF) << 8) | (src[i + 1] & 0xFF);
+			dst[j++] = table[value >>> 10];
+			dst[j++] = table[(value >>> 4) & 0x3F];
+			dst[j++] = table[(value << 2) & 0x3F];
+			if(pad)
+				dst[j++] = (byte)PAD;
+		}
+
+		return j - dstOffset;
+	}
+
+	// Used for buffers that are not backed by an array, indexes are absolute
+	private static int encodeRange(ByteBuffer src, int offset, int length, ByteBuffer dst, int dstOffset, int flags)
+	{
+		final byte []table = encodeBytesTable(flags);
+		final boolean wrap = (flags & (WRAP | CRLF)) != 0;
+		final boolean crlf = (flags & CRLF) != 0;
+		final boolean pad = (flags & NO_PADDING) == 0;
+		int end = offset + length;
+		int groupsEnd = end - (length % 3);
+		int i = offset, j = dstOffset;
+		int lineEnd, value;
+
+		while(i < groupsEnd)
+		{
+			lineEnd = (wrap && groupsEnd - i > LINE_BYTES) ? i + LINE_BYTES : groupsEnd;
+
+			while(i < lineEnd)
+			{
+				value = ((src.get(i) & 0xFF) << 16) | ((src.get(i + 1) & 0xFF) << 8) | (src.get(i + 2) & 0xFF);
+				i += 3;
+				dst.put(j++, table[(value >>> 18) & 0x3F]);
+				dst.put(j++, table[(value >>> 12) & 0x3F]);
+				dst.put(j++, table[(value >>> 6) & 0x3F]);
+				dst.put(j++, table[value & 0x3F]);
+			}
+
+			if(wrap && i < end && ((i - offset) % LINE_BYTES) == 0)
+			{
+				if(crlf)
+					dst.put(j++, (byte)'\r');
+				dst.put(j++, (byte)'\n');
+			}
+		}
+
+		if((length % 3) == 1)
+		{
+			value = src.get(i) & 0xFF;
+			dst.put(j++, table[value >>> 2]);
+			dst.put(j++, table[(value << 4) & 0x3F]);
+			if(pad)
+			{
+				dst.put(j++, (byte)PAD);
+				dst.put(j++, (byte)PAD);
+			}
+		}
+		else if((length % 3) == 2)
+		{
+			value = ((src.get(i) & 0xFF) << 8) | (src.get(i + 1) & 0xFF);
+			dst.put(j++, table[value >>> 10]);
+			dst.put(j++, table[(value >>> 4) & 0x3F]);
+			dst.put(j++, table[(value << 2) & 0x3F]);
+			if(pad)
+				dst.put(j++, (byte)PAD);
+		}
+
+		return j - dstOffset;
+	}
+
+	private static int decodeRange(CharSequence src, int offset, int length, byte []dst, int dstOffset, int flags) throws IOException
+	{
+		final byte []table = decodeTable(flags);
+		final boolean lenient = (flags & LENIENT) != 0;
+		int end = offset + length;
+		int i = offset, j = dstOffset;
+		int bits = 0, count = 0, pads = 0, last = -1;
+		int c, c0, c1, c2, c3, value;
+
+		while(i < end)
+		{
+			// Whole quanta with no whitespace or padding take the fast path
+			if(count == 0)
+			{
+				while(end - i >= 4)
+				{
+					c0 = src.charAt(i);
+					c1 = src.charAt(i + 1);
+					c2 = src.charAt(i + 2);
+					c3 = src.charAt(i + 3);
+					if((c0 | c1 | c2 | c3) > 0xFF)
+						break;
+					value = (table[c0] << 18) | (table[c1] << 12) | (table[c2] << 6) | table[c3];
+					// Any character outside the alphabet sets the sign bit
+					if(value < 0)
+						break;
+					i += 4;
+					dst[j++] = (byte)(value >> 16);
+					dst[j++] = (byte)(value >> 8);
+					dst[j++] = (byte)value;
+				}
+				if(i == end)
+					break;
+			}
+
+			// Everything else is handled one character at a time
+			c = src.charAt(i++);
+			value = c > 0xFF ? INVALID : table[c];
+			if(value >= 0)
+			{
+				bits = (bits << 6) | value;
+				last = i - 1;
+				if(++count == 4)
+				{
+					dst[j++] = (byte)(bits >> 16);
+					dst[j++] = (byte)(bits >> 8);
+					dst[j++] = (byte)bits;
+					bits = 0;
+					count = 0;
+				}
+			}
+			else if(c == PAD)
+			{
+				// Errors are found here rather than by scanning again, as in place the start of the input has been overwritten by now
+				if(count < 2)
+					throw decodeError(ERROR_PADDING, i - 1, offset, c);
+				// Only the rest of the padding, or whitespace when lenient, may follow
+				for(pads = 1; i < end; ++i)
+				{
+					c = src.charAt(i);
+					if(c == PAD)
+					{
+						if(++pads > 4 - count)
+							throw decodeError(ERROR_PADDING, i, offset, c);
+					}
+					else if(!lenient || c > 0xFF || table[c] != WHITESPACE)
+						throw decodeError(ERROR_CHARACTER, i, offset, c);
+				}
+				if(pads != 4 - count)
+					throw decodeError(ERROR_TRUNCATED, end, offset, 0);
+			}
+			else if(!lenient || value != WHITESPACE)
+				throw decodeError(ERROR_CHARACTER, i - 1, offset, c);
+		}
+
+		value = finalQuantum(bits, count, pads, flags);
+		if(value < 0)
+		{
+			if(count == 1 || (pads == 0 && (flags & NO_PADDING) == 0))
+				throw decodeError(ERROR_TRUNCATED, end, offset, 0);
+			throw decodeError(ERROR_TRAILING_BITS, last, offset, 0);
+		}
+		for(c = 0; c < (value >>> 24); ++c)
+			dst[j++] = (byte)(value >> (16 - (c * 8)));
+
+		return j - dstOffset;
+	}
+
+	static int decodeRange(byte []src, int offset, int length, byte []dst, int dstOffset, int flags) throws IOException
+	{
+		final byte []table = decodeTable(flags);
+		final boolean lenient = (flags & LENIENT) != 0;
+		int end = offset + length;
+		int i = offset, j = dstOffset;
+		int bits = 0, count = 0, pads = 0, last = -1;
+		int c, value;
+
+		while(i < end)
+		{
+			if(count == 0)
+			{
+				while(end - i >= 4)
+				{
+					value = (table[src[i] & 0xFF] << 18) | (table[src[i + 1] & 0xFF] << 12) | (table[src[i + 2] & 0xFF] << 6) | table[src[i + 3] & 0xFF];
+					if(value < 0)
+						break;
+					i += 4;
+					dst[j++] = (byte)(value >> 16);
+					dst[j++] = (byte)(value >> 8);
+					dst[j++] = (byte)value;
+				}
+				if(i == end)
+					break;
+			}
+
+			c = src[i++] & 0xFF;
+			value = table[c];
+			if(value >= 0)
+			{
+				bits = (bits << 6) | value;
+				last = i - 1;
+				if(++count == 4)
+				{
+					dst[j++] = (byte)(bits >> 16);
+					dst[j++] = (byte)(bits >> 8);
+					dst[j++] = (byte)bits;
+					bits = 0;
+					count = 0;
+				}
+			}
+			else if(c == PAD)
+			{
+				// Errors are found here rather than by scanning again, as in place the start of the input has been overwritten by now
+				if(count < 2)
+					throw decodeError(ERROR_PADDING, i - 1, offset, c);
+				// Only the rest of the padding, or whitespace when lenient, may follow
+				for(pads = 1; i < end; ++i)
+				{
+					c = src[i] & 0xFF;
+					if(c == PAD)
+					{
+						if(++pads > 4 - count)
+							throw decodeError(ERROR_PADDING, i, offset, c);
+					}
+					else if(!lenient || table[c] != WHITESPACE)
+						throw decodeError(ERROR_CHARACTER, i, offset, c);
+				}
+				if(pads != 4 - count)
+					throw decodeError(ERROR_TRUNCATED, end, offset, 0);
+			}
+			else if(!lenient || value != WHITESPACE)
+				throw decodeError(ERROR_CHARACTER, i - 1, offset, c);
+		}
+
+		value = finalQuantum(bits, count, pads, flags);
+		if(value < 0)
+		{
+			if(count == 1 || (pads == 0 && (flags & NO_PADDING) == 0))
+				throw decodeError(ERROR_TRUNCATED, end, offset, 0);
+			throw decodeError(ERROR_TRAILING_BITS, last, offset, 0);
+		}
+		for(c = 0; c < (value >>> 24); ++c)
+			dst[j++] = (byte)(value >> (16 - (c * 8)));
+
+		return j - dstOffset;
+	}
+
+	// Used for buffers that are not backed by an array, indexes are absolute
+	private static int decodeRange(ByteBuffer src, int offset, int length, ByteBuffer dst, int dstOffset, int flags) throws IOException
+	{
+		final byte []table = decodeTable(flags);
+		final boolean lenient = (flags & LENIENT) != 0;
+		int end = offset + length;
+		int i = offset, j = dstOffset;
+		int bits = 0, count = 0, pads = 0, last = -1;
+		int c, value;
+
+		while(i < end)
+		{
+			if(count == 0)
+			{
+				while(end - i >= 4)
+				{
+					value = (table[src.get(i) & 0xFF] << 18) | (table[src.get(i + 1) & 0xFF] << 12) | (table[src.get(i + 2) & 0xFF] << 6) | table[src.get(i + 3) & 0xFF];
+					if(value < 0)
+						break;
+					i += 4;
+					dst.put(j++, (byte)(value >> 16));
+					dst.put(j++, (byte)(value >> 8));
+					dst.put(j++, (byte)value);
+				}
+				if(i == end)
+					break;
+			}
+
+			c = src.get(i++) & 0xFF;
+			value = table[c];
+			if(value >= 0)
+			{
+				bits = (bits << 6) | value;
+				last = i - 1;
+				if(++count == 4)
+				{
+					dst.put(j++, (byte)(bits >> 16));
+					dst.put(j++, (byte)(bits >> 8));
+					dst.put(j++, (byte)bits);
+					bits = 0;
+					count = 0;
+				}
+			}
+			else if(c == PAD)
+			{
+				// Errors are found here rather than by scanning again, as in place the start of the input has been overwritten by now
+				if(count < 2)
+					throw decodeError(ERROR_PADDING, i - 1, offset, c);
+				// Only the rest of the padding, or whitespace when lenient, may follow
+				for(pads = 1; i < end; ++i)
+				{
+					c = src.get(i) & 0xFF;
+					if(c == PAD)
+					{
+						if(++pads > 4 - count)
+							throw decodeError(ERROR_PADDING, i, offset, c);
+					}
+					else if(!lenient || table[c] != WHITESPACE)
+						throw decodeError(ERROR_CHARACTER, i, offset, c);
+				}
+				if(pads != 4 - count)
+					throw decodeError(ERROR_TRUNCATED, end, offset, 0);
+			}
+			else if(!lenient || value != WHITESPACE)
+				throw decodeError(ERROR_CHARACTER, i - 1, offset, c);
+		}
+
+		value = finalQuantum(bits, count, pads, flags);
+		if(value < 0)
+		{
+			if(count == 1 || (pads == 0 && (flags & NO_PADDING) == 0))
+				throw decodeError(ERROR_TRUNCATED, end, offset, 0);
+			throw decodeError(ERROR_TRAILING_BITS, last, offset, 0);
+		}
+		for(c = 0; c < (value >>> 24); ++c)
+			dst.put(j++, (byte)(value >> (16 - (c * 8))));
+
+		return j - dstOffset;
+	}
+
+	public static String encode(byte []data)
+	{
+		return encode(data, 0, data.length, DEFAULT);
+	}
+
+	public static String encode(byte []data, int flags)
+	{
+		return encode(data, 0, data.length, flags);
+	}
+
+	public static String encode(byte []data, int offset, int length)
+	{
+		return encode(data, offset, length, DEFAULT);
+	}
+
+	public static String encode(byte []data, int offset, int length, int flags)
+	{
+		checkRange(data.length, offset, length);
+		char []encoded = new char[encodedLength(length, flags)];
+		encodeRange(data, offset, length, encoded, 0, flags);
+		return new String(encoded);
+	}
+
+	/**
+	 * Encodes a range of data into dst starting at dstOffset.
+	 * Returns the number of characters written.
+	 */
+	public static int encode(byte []data, int offset, int length, char []dst, int dstOffset)
+	{
+		return encode(data, offset, length, dst, dstOffset, DEFAULT);
+	}
+
+	public static int encode(byte []data, int offset, int length, char []dst, int dstOffset, int flags)
+	{
+		checkRange(data.length, offset, length);
+		checkSpace(dst.length, dstOffset, encodedLength(length, flags));
+		return encodeRange(data, offset, length, dst, dstOffset, flags);
+	}
+
+	/**
+	 * Encodes a range of data as ASCII bytes into dst starting at dstOffset.
+	 * Returns the number of bytes written.
+	 */
+	public static int encode(byte []data, int offset, int length, byte []dst, int dstOffset)
+	{
+		return encode(data, offset, length, dst, dstOffset, DEFAULT);
+	}
+
+	public static int encode(byte []data, int offset, int length, byte []dst, int dstOffset, int flags)
+	{
+		checkRange(data.length, offset, length);
+		checkSpace(dst.length, dstOffset, encodedLength(length, flags));
+		return encodeRange(data, offset, length, dst, dstOffset, flags);
+	}
+
+	/**
+	 * Encodes the remaining bytes of src as ASCII bytes into dst.
+	 * Both buffer positions are advanced and the number of bytes written is returned.
+	 * Throws BufferOverflowException without changing either buffer if dst does not have enough room.
+	 */
+	public static int encode(ByteBuffer src, ByteBuffer dst)
+	{
+		return encode(src, dst, DEFAULT);
+	}
+
+	public static int encode(ByteBuffer src, ByteBuffer dst, int flags)
+	{
+		int length = src.remaining();
+		int written;
+
+		if(dst.remaining() < encodedLength(length, flags))
+			throw new BufferOverflowException();
+		if(dst.isReadOnly())
+			throw new ReadOnlyBufferException();
+
+		if(src.hasArray() && dst.hasArray())
+			written = encodeRange(src.array(), src.arrayOffset() + src.position(), length, dst.array(), dst.arrayOffset() + dst.position(), flags);
+		else
+			written = encodeRange(src, src.position(), length, dst, dst.position(), flags);
+
+		src.position(src.position() + length);
+		dst.position(dst.position() + written);
+		return written;
+	}
+
 	public static byte []decode(String base64Str) throws IOException
 	{
-		int size;
-		
-		if((base64Str.length() % 4) != 0)
-			throw new IOException();
-	
-		size = (base64Str.length()/4) * 3;
-		if(base64Str.charAt(base64Str.length() - 2) == '=')
-			size -= 2;
-		else if(base64Str.charAt(base64Str.length() - 1) == '=')
-			size -= 1;
-	
+		return decode(base64Str, DEFAULT);
+	}
+
+	public static byte []decode(CharSequence base64Str) throws IOException
+	{
+		return decode(base64Str, DEFAULT);
+	}
+
+	public static byte []decode(CharSequence base64Str, int flags) throws IOException
+	{
+		int length = base64Str.length();
+		int size, written;
+
+		if(length == 0)
+			return new byte[0];
+
+		size = decodedSize(length, base64Str.charAt(length - 1), length > 1 ? base64Str.charAt(length - 2) : 0, flags);
 		byte []bytes = new byte[size];
-		byte []bits;
-		
-		for(int i = 0; (i * 4) < base64Str.length(); ++i)
+		written = decodeRange(base64Str, 0, length, bytes, 0, flags);
+		// Only lenient decoding can come up short of the estimate
+		if(written < size)
+		{
+			byte []trimmed = new byte[written];
+			System.arraycopy(bytes, 0, trimmed, 0, written);
+			bytes = trimmed;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Decodes a range of base64Str into dst starting at dstOffset.
+	 * Returns the number of bytes written.
+	 * When decoding leniently dst must have room for decodedLength(length) bytes.
+	 */
+	public static int decode(CharSequence base64Str, int offset, int length, byte []dst, int dstOffset) throws IOException
+	{
+		return decode(base64Str, offset, length, dst, dstOffset, DEFAULT);
+	}
+
+	public static int decode(CharSequence base64Str, int offset, int length, byte []dst, int dstOffset, int flags) throws IOException
+	{
+		checkRange(base64Str.length(), offset, length);
+		if(length > 1)
+			checkSpace(dst.length, dstOffset, decodedSize(length, base64Str.charAt(offset + length - 1), base64Str.charAt(offset + length - 2), flags));
+		return decodeRange(base64Str, offset, length, dst, dstOffset, flags);
+	}
+
+	public static int decode(char []src, int offset, int length, byte []dst, int dstOffset) throws IOException
+	{
+		return decode(CharBuffer.wrap(src), offset, length, dst, dstOffset, DEFAULT);
+	}
+
+	public static int decode(char []src, int offset, int length, byte []dst, int dstOffset, int flags) throws IOException
+	{
+		return decode(CharBuffer.wrap(src), offset, length, dst, dstOffset, flags);
+	}
+
+	/**
+	 * Decodes a range of ASCII encoded src into dst starting at dstOffset.
+	 * Returns the number of bytes written. src and dst may be the same array as long as dstOffset is not past offset.
+	 */
+	public static int decode(byte []src, int offset, int length, byte []dst, int dstOffset) throws IOException
+	{
+		return decode(src, offset, length, dst, dstOffset, DEFAULT);
+	}
+
+	public static int decode(byte []src, int offset, int length, byte []dst, int dstOffset, int flags) throws IOException
+	{
+		checkRange(src.length, offset, length);
+		if(length > 1)
+			checkSpace(dst.length, dstOffset, decodedSize(length, src[offset + length - 1], src[offset + length - 2], flags));
+		return decodeRange(src, offset, length, dst, dstOffset, flags);
+	}
+
+	/**
+	 * Decodes the remaining ASCII encoded bytes of src into dst.
+	 * Both buffer positions are advanced and the number of bytes written is returned.
+	 * Neither position is changed if the data is invalid or dst does not have enough room.
+	 */
+	public static int decode(ByteBuffer src, ByteBuffer dst) throws IOException
+	{
+		return decode(src, dst, DEFAULT);
+	}
+
+	public static int decode(ByteBuffer src, ByteBuffer dst, int flags) throws IOException
+	{
+		int length = src.remaining();
+		int written;
+
+		if(length > 1 && dst.remaining() < decodedSize(length, src.get(src.limit() - 1), src.get(src.limit() - 2), flags))
+			throw new BufferOverflowException();
+		if(dst.isReadOnly())
+			throw new ReadOnlyBufferException();
+
+		if(src.hasArray() && dst.hasArray())
+			written = decodeRange(src.array(), src.arrayOffset() + src.position(), length, dst.array(), dst.arrayOffset() + dst.position(), flags);
+		else
+			written = decodeRange(src, src.position(), length, dst, dst.position(), flags);
+
+		src.position(src.position() + length);
+		dst.position(dst.position() + written);
+		return written;
+	}
+
+	/**
+	 * Returns a stream that base64 encodes everything written to it into out.
+	 * The stream must be closed to write the final padded quantum.
+	 */
+	public static OutputStream wrapEncoder(OutputStream out)
+	{
+		return new Base64OutputStream(out, DEFAULT);
+	}
+
+	public static OutputStream wrapEncoder(OutputStream out, int flags)
+	{
+		return new Base64OutputStream(out, flags);
+	}
+
+	/**
+	 * Returns a stream that reads base64 encoded data from in and returns the decoded bytes.
+	 */
+	public static InputStream wrapDecoder(InputStream in)
+	{
+		return new Base64InputStream(in, DEFAULT);
+	}
+
+	public static InputStream wrapDecoder(InputStream in, int flags)
+	{
+		return new Base64InputStream(in, flags);
+	}
+
+	/**
+	 * Sets the input length below which encodeParallel and decodeParallel run on the calling thread.
+	 */
+	public static void setParallelThreshold(int length)
+	{
+		parallelThreshold = length;
+	}
+
+	public static int getParallelThreshold()
+	{
+		return parallelThreshold;
+	}
+
+	// Shared pool used when no executor is given, threads are daemons so they never keep the process alive
+	private static synchronized Executor getParallelExecutor()
+	{
+		if(parallelExecutor == null)
+		{
+			parallelExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				private int count = 0;
+
+				public synchronized Thread newThread(Runnable runnable)
+				{
+					Thread thread = new Thread(runnable, "Base64-" + (++this.count));
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return parallelExecutor;
+	}
+
+	// One chunk per core rounded up to a multiple of align, or length if the data should not be split
+	private static int parallelChunkSize(int length, int align)
+	{
+		int cpus = Runtime.getRuntime().availableProcessors();
+		int chunk;
+
+		if(length < parallelThreshold || cpus < 2)
+			return length;
+		chunk = length / cpus + 1;
+		return ((chunk + align - 1) / align) * align;
+	}
+
+	// Runs all but the last task on the executor and the last one on this thread, returns the sum of the results
+	private static int runParallel(List<FutureTask<Integer>> tasks, Executor executor) throws IOException
+	{
+		int total = 0;
+		int i;
+
+		if(executor == null)
+			executor = getParallelExecutor();
+		try
+		{
+			for(i = 0; i < tasks.size() - 1; ++i)
+				executor.execute(tasks.get(i));
+			tasks.get(i).run();
+			for(FutureTask<Integer> task : tasks)
+				total += task.get();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		catch(ExecutionException e)
+		{
+			if(e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			if(e.getCause() instanceof RuntimeException)
+				throw (RuntimeException)e.getCause();
+			throw new IOException(String.valueOf(e.getCause()));
+		}
+		finally
+		{
+			for(FutureTask<Integer> task : tasks)
+				task.cancel(false);
+		}
+		return total;
+	}
+
+	// Encodes one chunk of a parallel encode into either a char or a byte array
+	private static final class EncodeTask implements Callable<Integer>
+	{
+		private final byte []src;
+		private final int offset;
+		private final int length;
+		private final char []chars;
+		private final byte []bytes;
+		private final int dstOffset;
+		private final int flags;
+		private final boolean last;
+
+		EncodeTask(byte []src, int offset, int length, char []chars, byte []bytes, int dstOffset, int flags, boolean last)
+		{
+			this.src = src;
+			this.offset = offset;
+			this.length = length;
+			this.chars = chars;
+			this.bytes = bytes;
+			this.dstOffset = dstOffset;
+			this.flags = flags;
+			this.last = last;
+		}
+
+		public Integer call()
+		{
+			int j = this.dstOffset;
+			// Chunks are whole lines, so all but the last are followed by a line separator
+			boolean separate = !this.last && (this.flags & (WRAP | CRLF)) != 0;
+
+			if(this.chars != null)
+			{
+				j += encodeRange(this.src, this.offset, this.length, this.chars, j, this.flags);
+				if(separate && (this.flags & CRLF) != 0)
+					this.chars[j++] = '\r';
+				if(separate)
+					this.chars[j++] = '\n';
+			}
+			else
+			{
+				j += encodeRange(this.src, this.offset, this.length, this.bytes, j, this.flags);
+				if(separate && (this.flags & CRLF) != 0)
+					this.bytes[j++] = '\r';
+				if(separate)
+					this.bytes[j++] = '\n';
+			}
+			return j - this.dstOffset;
+		}
+	}
+
+	// Decodes one chunk of a parallel decode from either a CharSequence or a byte array
+	private static final class DecodeTask implements Callable<Integer>
+	{
+		private final CharSequence chars;
+		private final byte []bytes;
+		// Where the whole input starts, errors are reported from there
+		private final int base;
+		private final int offset;
+		private final int length;
+		private final byte []dst;
+		private final int dstOffset;
+		private final int flags;
+
+		DecodeTask(CharSequence chars, byte []bytes, int base, int offset, int length, byte []dst, int dstOffset, int flags)
+		{
+			this.chars = chars;
+			this.bytes = bytes;
+			this.base = base;
+			this.offset = offset;
+			this.length = length;
+			this.dst = dst;
+			this.dstOffset = dstOffset;
+			this.flags = flags;
+		}
+
+		public Integer call() throws IOException
+		{
+			try
+			{
+				if(this.chars != null)
+					return decodeRange(this.chars, this.offset, this.length, this.dst, this.dstOffset, this.flags);
+				return decodeRange(this.bytes, this.offset, this.length, this.dst, this.dstOffset, this.flags);
+			}
+			catch(IOException e)
+			{
+				// Found again from the start of the input, so the offset is the one a decode on one thread reports
+				throw decodeError(this.chars != null ? this.chars : new AsciiSequence(ByteBuffer.wrap(this.bytes)), this.base, this.offset + this.length - this.base, this.flags);
+			}
+		}
+	}
+
+	private static int encodeParallel(byte []data, int offset, int length, char []chars, byte []bytes, int dstOffset, int flags, Executor executor) throws IOException
+	{
+		// Chunks are whole lines so the output offset of each one is known up front
+		int chunk = parallelChunkSize(length, LINE_BYTES);
+		int separator = (flags & CRLF) != 0 ? 2 : ((flags & WRAP) != 0 ? 1 : 0);
+		List<FutureTask<Integer>> tasks = new ArrayList<FutureTask<Integer>>();
+		int start, size, out;
+
+		for(start = 0; start < length; start += chunk)
+		{
+			size = Math.min(chunk, length - start);
+			out = dstOffset + (start / 3) * 4 + (start / LINE_BYTES) * separator;
+			tasks.add(new FutureTask<Integer>(new EncodeTask(data, offset + start, size, chars, bytes, out, flags, start + size == length)));
+		}
+		if(tasks.isEmpty())
+			return 0;
+		return runParallel(tasks, executor);
+	}
+
+	private static int decodeParallel(CharSequence chars, byte []bytes, int offset, int length, byte []dst, int dstOffset, int flags, Executor executor) throws IOException
+	{
+		// Whitespace makes chunk boundaries unknown without a scan, so lenient input is decoded on this thread
+		int chunk = (flags & LENIENT) != 0 ? length : parallelChunkSize(length, 4);
+		List<FutureTask<Integer>> tasks = new ArrayList<FutureTask<Integer>>();
+		int start, size, last;
+
+		for(start = 0; start < length; start += chunk)
 		{
-			bits = mapChars(base64Str.substring((i * 4), (i * 4) + 4));
-			for(int j = 0; j < bits.length; ++j)
+			size = Math.min(chunk, length - start);
+			// Only the final chunk may end in padding
+			if(start + size < length)
 			{
-				bytes[(i * 3) + j] = bits[j];
+				last = chars != null ? chars.charAt(offset + start + size - 1) : bytes[offset + start + size - 1];
+				if(last == PAD)
+					throw decodeError(chars != null ? chars : new AsciiSequence(ByteBuffer.wrap(bytes)), offset, length, flags);
 			}
+			tasks.add(new FutureTask<Integer>(new DecodeTask(chars, bytes, offset, offset + start, size, dst, dstOffset + (start / 4) * 3, flags)));
 		}
+		if(tasks.isEmpty())
+			return 0;
+		return runParallel(tasks, executor);
+	}
+
+	public static String encodeParallel(byte []data, int flags)
+	{
+		return encodeParallel(data, flags, null);
+	}
+
+	/**
+	 * Encodes data on several threads of executor, or a shared pool if executor is null.
+	 */
+	public static String encodeParallel(byte []data, int flags, Executor executor)
+	{
+		char []encoded = new char[encodedLength(data.length, flags)];
+		try
+		{
+			encodeParallel(data, 0, data.length, encoded, null, 0, flags, executor);
+		}
+		catch(IOException e)
+		{
+			// Encoding itself never fails, only waiting for the chunks can be interrupted
+			throw new IllegalStateException(e);
+		}
+		return new String(encoded);
+	}
+
+	/**
+	 * Encodes a range of data as ASCII bytes into dst on several threads of executor, or a shared pool if executor is null.
+	 * Returns the number of bytes written.
+	 */
+	public static int encodeParallel(byte []data, int offset, int length, byte []dst, int dstOffset, int flags, Executor executor) throws IOException
+	{
+		checkRange(data.length, offset, length);
+		checkSpace(dst.length, dstOffset, encodedLength(length, flags));
+		return encodeParallel(data, offset, length, null, dst, dstOffset, flags, executor);
+	}
+
+	public static byte []decodeParallel(CharSequence base64Str, int flags) throws IOException
+	{
+		return decodeParallel(base64Str, flags, null);
+	}
+
+	/**
+	 * Decodes base64Str on several threads of executor, or a shared pool if executor is null.
+	 * Lenient input is always decoded on the calling thread.
+	 */
+	public static byte []decodeParallel(CharSequence base64Str, int flags, Executor executor) throws IOException
+	{
+		int length = base64Str.length();
+
+		if(length < 2 || (flags & LENIENT) != 0)
+			return decode(base64Str, flags);
+
+		byte []bytes = new byte[decodedSize(length, base64Str.charAt(length - 1), base64Str.charAt(length - 2), flags)];
+		decodeParallel(base64Str, null, 0, length, bytes, 0, flags, executor);
 		return bytes;
 	}
+
+	/**
+	 * Decodes a range of ASCII encoded src into dst on several threads of executor, or a shared pool if executor is null.
+	 * Returns the number of bytes written. src and dst must not overlap.
+	 */
+	public static int decodeParallel(byte []src, int offset, int length, byte []dst, int dstOffset, int flags, Executor executor) throws IOException
+	{
+		checkRange(src.length, offset, length);
+		if(length > 1)
+			checkSpace(dst.length, dstOffset, decodedSize(length, src[offset + length - 1], src[offset + length - 2], flags));
+		return decodeParallel(null, src, offset, length, dst, dstOffset, flags, executor);
+	}
 }
@@ -0,0 +1,147 @@
+package com.symbiotic.support;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputStream that decodes base64 data read from another stream.
+ * Input is read and decoded in fixed size chunks, incomplete quanta are carried
+ * over to the next read and padding is only accepted at the end of the stream.
+ * The Base64 flags select the alphabet, optional padding and whitespace skipping.
+ */
+public class Base64InputStream extends FilterInputStream
+{
+	// Multiple of 4 characters so whole quanta fill the buffer
+	static final int CHUNK_SIZE = 4096;
+
+	private final byte []buffer = new byte[CHUNK_SIZE];
+	private final byte []decoded = new byte[Base64.decodedLength(CHUNK_SIZE)];
+	private final int flags;
+	private int count;
+	private int position;
+	private int limit;
+	private boolean padded;
+	private boolean eof;
+
+	public Base64InputStream(InputStream in)
+	{
+		this(in, Base64.DEFAULT);
+	}
+
+	public Base64InputStream(InputStream in, int flags)
+	{
+		super(in);
+		this.flags = flags;
+	}
+
+	// Reads and decodes the next chunk, returns false at the end of the stream
+	private boolean fill() throws IOException
+	{
+		int read, length;
+
+		this.position = 0;
+		this.limit = 0;
+		while(this.limit == 0)
+		{
+			if(this.eof)
+				return false;
+
+			read = this.in.read(this.buffer, this.count, CHUNK_SIZE - this.count);
+			if(read < 0)
+			{
+				this.eof = true;
+				if(this.count == 0)
+					return false;
+				// Anything left over is a final quantum that is only valid without padding
+				if(this.padded)
+					throw new IOException("Data after padding.");
+				this.limit = Base64.decodeRange(this.buffer, 0, this.count, this.decoded, 0, this.flags);
+				this.count = 0;
+				return this.limit > 0;
+			}
+			if((this.flags & Base64.LENIENT) != 0)
+				read = Base64.stripWhitespace(this.buffer, this.count, read);
+			this.count += read;
+
+			length = this.count - (this.count % 4);
+			if(length == 0)
+				continue;
+			// Padding ends the data, nothing may follow it
+			if(this.padded)
+				throw new IOException("Data after padding.");
+			if(this.buffer[length - 1] == '=')
+				this.padded = true;
+
+			this.limit = Base64.decodeRange(this.buffer, 0, length, this.decoded, 0, this.flags);
+			this.count -= length;
+			if(this.count > 0)
+				System.arraycopy(this.buffer, length, this.buffer, 0, this.count);
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		if(this.position == this.limit && !fill())
+			return -1;
+		return this.decoded[this.position++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte []b, int offset, int length) throws IOException
+	{
+		if(offset < 0 || length < 0 || offset > b.length - length)
+			throw new IndexOutOfBoundsException();
+		if(length == 0)
+			return 0;
+		if(this.position == this.limit && !fill())
+			return -1;
+
+		length = Math.min(length, this.limit - this.position);
+		System.arraycopy(this.decoded, this.position, b, offset, length);
+		this.position += length;
+		return length;
+	}
+
+	@Override
+	public long skip(long n) throws IOException
+	{
+		long skipped = 0;
+		int step;
+
+		while(skipped < n)
+		{
+			if(this.position == this.limit && !fill())
+				break;
+			step = (int)Math.min(n - skipped, this.limit - this.position);
+			this.position += step;
+			skipped += step;
+		}
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException
+	{
+		return this.limit - this.position;
+	}
+
+	@Override
+	public boolean markSupported()
+	{
+		return false;
+	}
+
+	@Override
+	public void mark(int readlimit)
+	{
+	}
+
+	@Override
+	public void reset() throws IOException
+	{
+		throw new IOException("mark/reset not supported");
+	}
+}
@@ -0,0 +1,141 @@
+package com.symbiotic.support;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An OutputStream that base64 encodes the data written to it.
+ * Data is encoded in fixed size chunks and a partial 3-byte group is carried
+ * over to the next write, so memory use does not depend on the amount of data.
+ * Closing the stream writes the final padded quantum.
+ * The Base64 flags select the alphabet, padding and line wrapping.
+ */
+public class Base64OutputStream extends FilterOutputStream
+{
+	// Whole number of wrapped lines, so every chunk encodes without padding or a partial line
+	static final int CHUNK_SIZE = 57 * 48;
+
+	private final byte []buffer = new byte[CHUNK_SIZE];
+	private final byte []encoded;
+	private final int flags;
+	private final boolean wrap;
+	private int count;
+	private boolean started;
+	private boolean closed;
+
+	public Base64OutputStream(OutputStream out)
+	{
+		this(out, Base64.DEFAULT);
+	}
+
+	public Base64OutputStream(OutputStream out, int flags)
+	{
+		super(out);
+		this.flags = flags;
+		this.wrap = (flags & (Base64.WRAP | Base64.CRLF)) != 0;
+		this.encoded = new byte[Base64.encodedLength(CHUNK_SIZE, flags) + 2];
+	}
+
+	private void ensureOpen() throws IOException
+	{
+		if(this.closed)
+			throw new IOException("Stream closed");
+	}
+
+	private void writeChunk(byte []data, int offset, int length) throws IOException
+	{
+		int written = 0;
+
+		// Chunks end on a line boundary, so a separator goes between chunks
+		if(this.wrap && this.started)
+		{
+			if((this.flags & Base64.CRLF) != 0)
+				this.encoded[written++] = '\r';
+			this.encoded[written++] = '\n';
+		}
+		written += Base64.encodeRange(data, offset, length, this.encoded, written, this.flags);
+		this.out.write(this.encoded, 0, written);
+		this.started = true;
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		ensureOpen();
+		this.buffer[this.count++] = (byte)b;
+		if(this.count == CHUNK_SIZE)
+		{
+			writeChunk(this.buffer, 0, CHUNK_SIZE);
+			this.count = 0;
+		}
+	}
+
+	@Override
+	public void write(byte []b, int offset, int length) throws IOException
+	{
+		int n;
+
+		ensureOpen();
+		if(offset < 0 || length < 0 || offset > b.length - length)
+			throw new IndexOutOfBoundsException();
+
+		// Top up a partially filled chunk first
+		if(this.count > 0)
+		{
+			n = Math.min(length, CHUNK_SIZE - this.count);
+			System.arraycopy(b, offset, this.buffer, this.count, n);
+			this.count += n;
+			offset += n;
+			length -= n;
+			if(this.count < CHUNK_SIZE)
+				return;
+			writeChunk(this.buffer, 0, CHUNK_SIZE);
+			this.count = 0;
+		}
+
+		// Whole chunks are encoded straight from the caller's array
+		while(length >= CHUNK_SIZE)
+		{
+			writeChunk(b, offset, CHUNK_SIZE);
+			offset += CHUNK_SIZE;
+			length -= CHUNK_SIZE;
+		}
+
+		if(length > 0)
+		{
+			System.arraycopy(b, offset, this.buffer, 0, length);
+			this.count = length;
+		}
+	}
+
+	/**
+	 * Flushes the underlying stream.
+	 * Bytes that do not yet make up a full chunk stay buffered until more data is written or the stream is closed.
+	 */
+	@Override
+	public void flush() throws IOException
+	{
+		ensureOpen();
+		this.out.flush();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if(this.closed)
+			return;
+		this.closed = true;
+		try
+		{
+			if(this.count > 0)
+				writeChunk(this.buffer, 0, this.count);
+			this.count = 0;
+			this.out.flush();
+		}
+		finally
+		{
+			this.out.close();
+		}
+	}
+}
@@ -0,0 +1,236 @@
+package com.symbiotic.support;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A handle to a batch of uploads started with S3Connection.uploadBatch.
+ * No more than the batch concurrency of its uploads are queued or running at once, the rest wait in the batch in order
+ * of priority and size, so a large batch neither fills the scheduler queue nor holds back the uploads of other batches.
+ * The BatchListener is told once, after every upload has finished, failed or been cancelled, and after their own listeners.
+ */
+public final class S3Batch
+{
+	public interface BatchListener
+	{
+		void batchFinished(S3Connection connection, S3Batch batch);
+	}
+
+	private final S3Connection connection;
+	private final List<S3Request> requests;
+	private final BatchListener listener;
+	private final int concurrency;
+	private final CountDownLatch done = new CountDownLatch(1);
+	// Uploads that have not been handed to the scheduler, in the order they will be
+	private final LinkedList<Item> pending = new LinkedList<Item>();
+	private final HashSet<S3Request> started = new HashSet<S3Request>();
+	private int remaining;
+	private boolean finished;
+	final S3Request.FinishListener finishListener = new S3Request.FinishListener() {
+		public void requestFinished(S3Request request)
+		{
+			S3Batch.this.startNext(request);
+		}
+	};
+
+	// Sorts highest priority first, then smallest first
+	static final class Item implements Comparable<Item>
+	{
+		final S3Request request;
+		final int priority;
+		final long length;
+
+		Item(S3Request request, int priority, long length)
+		{
+			this.request = request;
+			this.priority = priority;
+			this.length = length;
+		}
+
+		public int compareTo(Item other)
+		{
+			if(this.priority != other.priority)
+				return this.priority > other.priority ? -1 : 1;
+			return this.length < other.length ? -1 : (this.length == other.length ? 0 : 1);
+		}
+	}
+
+	// items are in the order uploads should start, requests in the order they were given
+	S3Batch(S3Connection connection, List<S3Request> requests, List<Item> items, int concurrency, BatchListener listener)
+	{
+		this.connection = connection;
+		this.requests = Collections.unmodifiableList(requests);
+		this.pending.addAll(items);
+		this.remaining = items.size();
+		this.concurrency = concurrency;
+		this.listener = listener;
+	}
+
+	public S3Connection getConnection()
+	{
+		return this.connection;
+	}
+
+	/**
+	 * Returns the request of every upload, in the order the S3UploadSpecs were given.
+	 */
+	public List<S3Request> getRequests()
+	{
+		return this.requests;
+	}
+
+	public int getSucceededCount()
+	{
+		return this.count(S3Request.STATUS_SUCCEEDED);
+	}
+
+	public int getFailedCount()
+	{
+		return this.count(S3Request.STATUS_FAILED);
+	}
+
+	public int getCancelledCount()
+	{
+		return this.count(S3Request.STATUS_CANCELLED);
+	}
+
+	/**
+	 * Returns the requests that failed, for example to try them again in a new batch.
+	 */
+	public List<S3Request> getFailedRequests()
+	{
+		ArrayList<S3Request> failed = new ArrayList<S3Request>();
+
+		for(S3Request request : this.requests)
+		{
+			if(request.getStatus() == S3Request.STATUS_FAILED)
+				failed.add(request);
+		}
+		return failed;
+	}
+
+	public long getBytesSent()
+	{
+		long bytes = 0;
+
+		for(S3Request request : this.requests)
+			bytes += request.getBytesSent();
+		return bytes;
+	}
+
+	public synchronized boolean isDone()
+	{
+		return this.finished;
+	}
+
+	/**
+	 * Cancels every upload of the batch that has not finished.
+	 */
+	public void cancel()
+	{
+		ArrayList<Item> items;
+
+		synchronized(this)
+		{
+			items = new ArrayList<Item>(this.pending);
+		}
+		// Waiting uploads first, so cancelling a running one does not start them
+		for(Item item : items)
+			item.request.cancel();
+		for(S3Request request : this.requests)
+			request.cancel();
+	}
+
+	/**
+	 * Blocks until every upload has finished, failed or been cancelled.
+	 */
+	public void await() throws InterruptedException
+	{
+		this.done.await();
+	}
+
+	/**
+	 * Blocks for at most timeout milliseconds, returns true if the batch finished.
+	 */
+	public boolean await(long timeout) throws InterruptedException
+	{
+		return this.done.await(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	// Starts as many uploads as the concurrency allows, a batch with nothing to send finishes here
+	void start()
+	{
+		this.startNext(null);
+	}
+
+	private void startNext(S3Request finished)
+	{
+		ArrayList<Item> next = new ArrayList<Item>();
+		boolean last = false;
+
+		synchronized(this)
+		{
+			if(finished != null)
+			{
+				if(!this.started.remove(finished))
+					this.removePending(finished);
+				--this.remaining;
+			}
+			if(this.remaining == 0 && !this.finished)
+				last = this.finished = true;
+			while(this.started.size() < this.concurrency && !this.pending.isEmpty())
+			{
+				Item item = this.pending.removeFirst();
+				this.started.add(item.request);
+				next.add(item);
+			}
+		}
+
+		// Started outside the lock, an upload that fails to start comes straight back here
+		for(Item item : next)
+			this.connection.start(item.request, item.priority);
+
+		if(last)
+		{
+			this.done.countDown();
+			if(this.listener != null)
+			{
+				S3Connection.runOnUiThread(new Runnable() {
+					public void run()
+					{
+						S3Batch.this.listener.batchFinished(S3Batch.this.connection, S3Batch.this);
+					}
+				});
+			}
+		}
+	}
+
+	private void removePending(S3Request request)
+	{
+		for(Item item : this.pending)
+		{
+			if(item.request == request)
+			{
+				this.pending.remove(item);
+				return;
+			}
+		}
+	}
+
+	private int count(int status)
+	{
+		int count = 0;
+
+		for(S3Request request : this.requests)
+		{
+			if(request.getStatus() == status)
+				++count;
+		}
+		return count;
+	}
+}
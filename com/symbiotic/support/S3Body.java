@@ -0,0 +1,530 @@
+package com.symbiotic.support;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * The content of an upload: a byte array, a ByteBuffer or a file.
+ * Bodies can be read any number of times so a request can be retried.
+ * The MD5 and the gzip check are done together in one read and kept, so the body is read once more to be sent.
+ * A GzipBody compresses another body as it is read, so a compressed copy is never kept on disk or in memory.
+ */
+abstract class S3Body
+{
+	private static final int BUFFER_SIZE = 8192;
+
+	private S3Digest digest;
+	private String contentMD5;
+
+	abstract long getLength();
+	abstract InputStream openStream() throws IOException;
+	abstract boolean isFile();
+	abstract S3Digest computeDigest() throws IOException;
+
+	synchronized S3Digest getDigest() throws IOException
+	{
+		if(this.digest == null)
+			this.digest = this.computeDigest();
+		return this.digest;
+	}
+
+	/**
+	 * Uses an MD5 that is already known instead of reading the body to compute it.
+	 */
+	synchronized void setContentMD5(String contentMD5)
+	{
+		this.contentMD5 = contentMD5;
+	}
+
+	synchronized boolean hasContentMD5()
+	{
+		return this.contentMD5 != null || this.digest != null;
+	}
+
+	synchronized String getContentMD5() throws IOException
+	{
+		if(this.contentMD5 == null)
+			this.contentMD5 = this.getDigest().getContentMD5();
+		return this.contentMD5;
+	}
+
+	void writeTo(OutputStream out) throws IOException
+	{
+		InputStream in = this.openStream();
+		try
+		{
+			byte []buffer = new byte[BUFFER_SIZE];
+			int read;
+			while((read = in.read(buffer)) >= 0)
+				out.write(buffer, 0, read);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	// Returns true if the body starts with the gzip magic number, without reading it again if the MD5 has been computed
+	boolean startsWithGzipMagic() throws IOException
+	{
+		synchronized(this)
+		{
+			if(this.digest != null)
+				return this.digest.isGzip();
+		}
+
+		InputStream in = this.openStream();
+		try
+		{
+			return in.read() == 0x1f && in.read() == 0x8b;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	static final class DataBody extends S3Body
+	{
+		final byte []data;
+
+		DataBody(byte []data)
+		{
+			this.data = data;
+		}
+
+		long getLength()
+		{
+			return this.data.length;
+		}
+
+		InputStream openStream()
+		{
+			return new ByteArrayInputStream(this.data);
+		}
+
+		boolean isFile()
+		{
+			return false;
+		}
+
+		S3Digest computeDigest()
+		{
+			return S3Digest.compute(this.data, 0, this.data.length);
+		}
+
+		@Override
+		void writeTo(OutputStream out) throws IOException
+		{
+			for(int off = 0; off < this.data.length; off += BUFFER_SIZE)
+				out.write(this.data, off, Math.min(BUFFER_SIZE, this.data.length - off));
+		}
+
+		@Override
+		boolean startsWithGzipMagic()
+		{
+			return this.data.length >= 2 && this.data[0] == (byte)0x1f && this.data[1] == (byte)0x8b;
+		}
+	}
+
+	// The remaining bytes of a ByteBuffer, heap, direct or mapped, hashed and sent without copying them into an array first
+	static final class BufferBody extends S3Body
+	{
+		final ByteBuffer buffer;
+
+		BufferBody(ByteBuffer buffer)
+		{
+			// A duplicate so the caller moving the position or limit afterwards does not change the body
+			this.buffer = buffer.duplicate();
+		}
+
+		long getLength()
+		{
+			return this.buffer.remaining();
+		}
+
+		InputStream openStream()
+		{
+			return new BufferInputStream(this.buffer.duplicate());
+		}
+
+		boolean isFile()
+		{
+			return false;
+		}
+
+		S3Digest computeDigest()
+		{
+			return S3Digest.compute(this.buffer);
+		}
+
+		@Override
+		void writeTo(OutputStream out) throws IOException
+		{
+			S3Digest.copy(this.buffer, out);
+		}
+
+		@Override
+		boolean startsWithGzipMagic()
+		{
+			int position = this.buffer.position();
+			return this.buffer.remaining() >= 2 && this.buffer.get(position) == (byte)0x1f && this.buffer.get(position + 1) == (byte)0x8b;
+		}
+	}
+
+	static final class FileBody extends S3Body
+	{
+		final File file;
+
+		FileBody(File file)
+		{
+			this.file = file;
+		}
+
+		long getLength()
+		{
+			return this.file.length();
+		}
+
+		InputStream openStream() throws IOException
+		{
+			return new FileInputStream(this.file);
+		}
+
+		boolean isFile()
+		{
+			return true;
+		}
+
+		S3Digest computeDigest() throws IOException
+		{
+			return S3Digest.compute(this.file);
+		}
+
+		@Override
+		void writeTo(OutputStream out) throws IOException
+		{
+			S3Digest.copy(this.file, 0, this.file.length(), out);
+		}
+	}
+
+	// One part of a file, used by multipart uploads
+	static final class FileRegionBody extends S3Body
+	{
+		final File file;
+		final long offset;
+		final long length;
+
+		FileRegionBody(File file, long offset, long length)
+		{
+			this.file = file;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		long getLength()
+		{
+			return this.length;
+		}
+
+		InputStream openStream() throws IOException
+		{
+			FileInputStream in = new FileInputStream(this.file);
+			long skipped = 0, count;
+
+			try
+			{
+				while(skipped < this.offset && (count = in.skip(this.offset - skipped)) > 0)
+					skipped += count;
+				if(skipped < this.offset)
+					throw new IOException("File is shorter than expected.");
+			}
+			catch(IOException e)
+			{
+				in.close();
+				throw e;
+			}
+			return new RegionInputStream(in, this.length);
+		}
+
+		boolean isFile()
+		{
+			return true;
+		}
+
+		S3Digest computeDigest() throws IOException
+		{
+			return S3Digest.compute(this.file, this.offset, this.length);
+		}
+
+		@Override
+		void writeTo(OutputStream out) throws IOException
+		{
+			S3Digest.copy(this.file, this.offset, this.length, out);
+		}
+	}
+
+	/**
+	 * Another body compressed with gzip as it is read. S3 needs the length and MD5 of what is sent before sending it,
+	 * so the body is compressed once to compute them and again while it is sent. The length is -1 until then.
+	 */
+	static final class GzipBody extends S3Body
+	{
+		final S3Body source;
+		final int level;
+		final int bufferSize;
+		private volatile long length = -1;
+
+		GzipBody(S3Body source, int level, int bufferSize)
+		{
+			this.source = source;
+			this.level = level;
+			this.bufferSize = bufferSize;
+		}
+
+		long getLength()
+		{
+			return this.length;
+		}
+
+		InputStream openStream() throws IOException
+		{
+			return new GzipInputStream(this.source.openStream(), this.level, this.bufferSize);
+		}
+
+		boolean isFile()
+		{
+			return this.source.isFile();
+		}
+
+		S3Digest computeDigest() throws IOException
+		{
+			S3Digest digest;
+			InputStream in = this.openStream();
+			try
+			{
+				digest = S3Digest.compute(in, this.bufferSize);
+			}
+			finally
+			{
+				in.close();
+			}
+			this.length = digest.getLength();
+			return digest;
+		}
+
+		// Read the same way as computeDigest, so the compressed bytes are the same ones that were hashed
+		@Override
+		void writeTo(OutputStream out) throws IOException
+		{
+			InputStream in = this.openStream();
+			try
+			{
+				byte []buffer = new byte[this.bufferSize];
+				int read;
+				while((read = in.read(buffer)) >= 0)
+					out.write(buffer, 0, read);
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+
+		@Override
+		boolean startsWithGzipMagic()
+		{
+			return true;
+		}
+	}
+
+	// Compresses a stream into the gzip format as it is read, the counterpart of GZIPInputStream
+	private static final class GzipInputStream extends InputStream
+	{
+		private static final byte []HEADER = { 0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+		private final InputStream in;
+		private final Deflater deflater;
+		private final CRC32 crc = new CRC32();
+		private final byte []input;
+		private byte []trailer;
+		private int headerPosition;
+		private int trailerPosition;
+
+		GzipInputStream(InputStream in, int level, int bufferSize)
+		{
+			this.in = in;
+			this.deflater = new Deflater(level, true);
+			this.input = new byte[bufferSize];
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			byte []b = new byte[1];
+			return this.read(b, 0, 1) > 0 ? b[0] & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte []b, int off, int len) throws IOException
+		{
+			int count;
+
+			if(len == 0)
+				return 0;
+			if(this.headerPosition < HEADER.length)
+			{
+				count = Math.min(len, HEADER.length - this.headerPosition);
+				System.arraycopy(HEADER, this.headerPosition, b, off, count);
+				this.headerPosition += count;
+				return count;
+			}
+
+			while(!this.deflater.finished())
+			{
+				if(this.deflater.needsInput())
+				{
+					if((count = this.in.read(this.input)) < 0)
+						this.deflater.finish();
+					else if(count > 0)
+					{
+						this.crc.update(this.input, 0, count);
+						this.deflater.setInput(this.input, 0, count);
+					}
+				}
+				if((count = this.deflater.deflate(b, off, len)) > 0)
+					return count;
+			}
+
+			// The CRC and the uncompressed size, little endian
+			if(this.trailer == null)
+			{
+				long crc = this.crc.getValue(), size = this.deflater.getBytesRead();
+				this.trailer = new byte[8];
+				for(int i = 0; i < 4; ++i)
+				{
+					this.trailer[i] = (byte)(crc >> (i * 8));
+					this.trailer[i + 4] = (byte)(size >> (i * 8));
+				}
+			}
+			if(this.trailerPosition == this.trailer.length)
+				return -1;
+			count = Math.min(len, this.trailer.length - this.trailerPosition);
+			System.arraycopy(this.trailer, this.trailerPosition, b, off, count);
+			this.trailerPosition += count;
+			return count;
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			this.deflater.end();
+			this.in.close();
+		}
+	}
+
+	// Reads a ByteBuffer from its position to its limit
+	private static final class BufferInputStream extends InputStream
+	{
+		private final ByteBuffer buffer;
+
+		BufferInputStream(ByteBuffer buffer)
+		{
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read()
+		{
+			return this.buffer.hasRemaining() ? this.buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte []b, int off, int len)
+		{
+			if(len == 0)
+				return 0;
+			if(!this.buffer.hasRemaining())
+				return -1;
+			len = Math.min(len, this.buffer.remaining());
+			this.buffer.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public long skip(long n)
+		{
+			int count = (int)Math.max(Math.min(n, this.buffer.remaining()), 0);
+			this.buffer.position(this.buffer.position() + count);
+			return count;
+		}
+
+		@Override
+		public int available()
+		{
+			return this.buffer.remaining();
+		}
+	}
+
+	// Reads no more than limit bytes from a stream
+	private static final class RegionInputStream extends FilterInputStream
+	{
+		private long remaining;
+
+		RegionInputStream(InputStream in, long limit)
+		{
+			super(in);
+			this.remaining = limit;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			if(this.remaining <= 0)
+				return -1;
+			int b = this.in.read();
+			if(b >= 0)
+				this.remaining--;
+			return b;
+		}
+
+		@Override
+		public int read(byte []b, int off, int len) throws IOException
+		{
+			if(this.remaining <= 0)
+				return -1;
+			int read = this.in.read(b, off, (int)Math.min(len, this.remaining));
+			if(read > 0)
+				this.remaining -= read;
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException
+		{
+			long skipped = this.in.skip(Math.min(n, this.remaining));
+			this.remaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException
+		{
+			return (int)Math.min(this.in.available(), this.remaining);
+		}
+
+		@Override
+		public boolean markSupported()
+		{
+			return false;
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package com.symbiotic.support;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
+/**
+ * A thread-safe HttpClient with a pool of keep-alive connections shared by S3Connection instances.
+ * Reusing connections saves the TCP and TLS handshake on every request after the first one to a bucket.
+ * Connections that sit idle longer than the idle timeout are closed by a background thread.
+ */
+public final class S3ClientPool
+{
+	public static final int DEFAULT_MAX_PER_HOST = 4;
+	public static final int DEFAULT_MAX_TOTAL = 16;
+	public static final long DEFAULT_IDLE_TIMEOUT = 30000;
+
+	private static final int CONNECTION_TIMEOUT = 20000;
+	private static final int SOCKET_TIMEOUT = 60000;
+	private static final int SOCKET_BUFFER_SIZE = 8192;
+
+	private static S3ClientPool defaultPool;
+
+	private final DefaultHttpClient client;
+	private final ThreadSafeClientConnManager connectionManager;
+	private final long idleTimeout;
+	private final int maxTotal;
+	private Thread evictor;
+	private boolean shutdown;
+
+	public S3ClientPool()
+	{
+		this(DEFAULT_MAX_PER_HOST, DEFAULT_MAX_TOTAL, DEFAULT_IDLE_TIMEOUT);
+	}
+
+	/**
+	 * maxPerHost limits the connections to a single bucket host, maxTotal the connections to all hosts.
+	 * idleTimeout is in milliseconds.
+	 */
+	public S3ClientPool(int maxPerHost, int maxTotal, long idleTimeout)
+	{
+		HttpParams params = new BasicHttpParams();
+		SchemeRegistry schemeRegistry = new SchemeRegistry();
+
+		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+		HttpProtocolParams.setUseExpectContinue(params, false);
+		HttpConnectionParams.setConnectionTimeout(params, CONNECTION_TIMEOUT);
+		HttpConnectionParams.setSoTimeout(params, SOCKET_TIMEOUT);
+		HttpConnectionParams.setSocketBufferSize(params, SOCKET_BUFFER_SIZE);
+		HttpConnectionParams.setStaleCheckingEnabled(params, true);
+		ConnManagerParams.setMaxTotalConnections(params, maxTotal);
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxPerHost));
+
+		schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+		schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+		this.connectionManager = new ThreadSafeClientConnManager(params, schemeRegistry);
+		this.client = new DefaultHttpClient(this.connectionManager, params);
+		// Requests are only sent again by S3Connection, as its S3RetryPolicy allows, never quietly by the client
+		this.client.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false));
+		this.idleTimeout = idleTimeout;
+		this.maxTotal = maxTotal;
+	}
+
+	/**
+	 * Returns the pool shared by every S3Connection that has not been given its own.
+	 */
+	public static synchronized S3ClientPool getDefault()
+	{
+		if(defaultPool == null)
+			defaultPool = new S3ClientPool();
+		return defaultPool;
+	}
+
+	public HttpClient getClient()
+	{
+		this.startEvictor();
+		return this.client;
+	}
+
+	/**
+	 * Reads what is left of the response body so the connection goes back to the pool.
+	 */
+	public static void release(HttpResponse response)
+	{
+		HttpEntity entity;
+
+		if(response == null || (entity = response.getEntity()) == null)
+			return;
+		try
+		{
+			entity.consumeContent();
+		}
+		catch(Exception e) {}
+	}
+
+	/**
+	 * Returns the number of open connections, in use or idle. Divided by getMaxTotal it is how much of the pool is used.
+	 */
+	public int getConnectionCount()
+	{
+		return this.connectionManager.getConnectionsInPool();
+	}
+
+	public int getMaxTotal()
+	{
+		return this.maxTotal;
+	}
+
+	public void closeIdleConnections()
+	{
+		this.connectionManager.closeExpiredConnections();
+		this.connectionManager.closeIdleConnections(this.idleTimeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Closes every connection and stops the idle connection thread. The pool cannot be used afterwards.
+	 */
+	public void shutdown()
+	{
+		synchronized(this)
+		{
+			this.shutdown = true;
+			if(this.evictor != null)
+				this.evictor.interrupt();
+			this.evictor = null;
+		}
+		this.connectionManager.shutdown();
+	}
+
+	private synchronized void startEvictor()
+	{
+		if(this.evictor != null || this.shutdown)
+			return;
+
+		this.evictor = new Thread(new Runnable() {
+			public void run()
+			{
+				try
+				{
+					while(!Thread.currentThread().isInterrupted())
+					{
+						Thread.sleep(S3ClientPool.this.idleTimeout / 2);
+						S3ClientPool.this.closeIdleConnections();
+					}
+				}
+				catch(InterruptedException e) {}
+			}
+		}, "S3ClientPool-evictor");
+		this.evictor.setDaemon(true);
+		this.evictor.start();
+	}
+}
@@ -0,0 +1,108 @@
+package com.symbiotic.support;
+
+/**
+ * Finds how many uploads to run at once by additive increase and multiplicative decrease, see S3Connection.setConcurrencyController.
+ * Every HTTP request sent by the connections it is set on is a sample of the bytes sent, the time spent on anything but sending
+ * the body, and whether it failed with a connection error, a 5xx, 429 or 408. At the end of each sample interval the limit
+ * is cut if any request failed that way, or if that time has grown well past the lowest seen without the throughput growing
+ * with it. Otherwise it goes up by one while the throughput keeps up and every worker is busy. The limit is the scheduler's worker count,
+ * and caps the part concurrency of MULTIPART uploads and downloads.
+ */
+public final class S3ConcurrencyController
+{
+	public static final long DEFAULT_SAMPLE_INTERVAL = 2000;
+	// Fewer samples than this in an interval are carried into the next one
+	public static final int MIN_SAMPLES = 4;
+
+	private static final double DECREASE = 0.75;
+	// The time to first byte may grow by this much over the lowest seen before it counts as congestion
+	private static final double LATENCY_TOLERANCE = 2.0;
+	// Throughput within this fraction of the last interval's is not a change
+	private static final double THROUGHPUT_TOLERANCE = 0.05;
+
+	private final S3UploadScheduler scheduler;
+	private final int minLimit;
+	private final int maxLimit;
+	private long sampleInterval = DEFAULT_SAMPLE_INTERVAL * 1000000;
+
+	private int limit;
+	private long windowStart = System.nanoTime();
+	private long windowBytes;
+	private long windowLatency;
+	private int windowCount;
+	private int windowCongested;
+	private double lastThroughput;
+	private long minLatency;
+
+	/**
+	 * Controls the worker count of scheduler between minLimit and maxLimit, starting from what it is now.
+	 */
+	public S3ConcurrencyController(S3UploadScheduler scheduler, int minLimit, int maxLimit)
+	{
+		this.scheduler = scheduler;
+		this.minLimit = Math.max(minLimit, 1);
+		this.maxLimit = Math.max(maxLimit, this.minLimit);
+		this.limit = Math.min(Math.max(scheduler.getWorkerCount(), this.minLimit), this.maxLimit);
+		scheduler.setWorkerCount(this.limit);
+	}
+
+	public S3UploadScheduler getScheduler()
+	{
+		return this.scheduler;
+	}
+
+	public synchronized int getLimit()
+	{
+		return this.limit;
+	}
+
+	/**
+	 * Sets how many milliseconds of samples are looked at before the limit is changed.
+	 */
+	public synchronized void setSampleInterval(long sampleInterval)
+	{
+		this.sampleInterval = Math.max(sampleInterval, 1) * 1000000;
+	}
+
+	// Called by S3Connection for every HTTP request, latency is the time spent on anything but sending the body
+	void record(long bytes, long latency, boolean congested)
+	{
+		int limit;
+
+		synchronized(this)
+		{
+			long now = System.nanoTime(), elapsed = now - this.windowStart, meanLatency;
+			double throughput;
+
+			this.windowBytes += bytes;
+			this.windowLatency += latency;
+			this.windowCount++;
+			if(congested)
+				this.windowCongested++;
+			if(elapsed < this.sampleInterval || this.windowCount < MIN_SAMPLES)
+				return;
+
+			throughput = this.windowBytes * 1e9 / elapsed;
+			meanLatency = this.windowLatency / this.windowCount;
+			// The lowest latency drifts up slowly, so a network that got slower for good is not taken as congested forever
+			if(this.minLatency == 0 || meanLatency < this.minLatency)
+				this.minLatency = meanLatency;
+			else
+				this.minLatency += this.minLatency >> 6;
+
+			if(this.windowCongested > 0 || (meanLatency > this.minLatency * LATENCY_TOLERANCE && throughput < this.lastThroughput * (1 + THROUGHPUT_TOLERANCE)))
+				this.limit = Math.max((int)(this.limit * DECREASE), this.minLimit);
+			// Only raised when there are uploads waiting for it
+			else if(throughput >= this.lastThroughput * (1 - THROUGHPUT_TOLERANCE) && this.scheduler.getActiveCount() + this.scheduler.getQueuedCount() >= this.limit)
+				this.limit = Math.min(this.limit + 1, this.maxLimit);
+
+			this.lastThroughput = throughput;
+			this.windowStart = now;
+			this.windowBytes = this.windowLatency = 0;
+			this.windowCount = this.windowCongested = 0;
+			limit = this.limit;
+		}
+		if(this.scheduler.getWorkerCount() != limit)
+			this.scheduler.setWorkerCount(limit);
+	}
+}
@@ -5,34 +5,40 @@ import android.os.Looper;
 import android.util.Log;
 import android.webkit.MimeTypeMap;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.InputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URLEncoder;
-import java.security.MessageDigest;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Scanner;
-import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.Deflater;
 
-import javax.crypto.SecretKey;
-import javax.crypto.spec.SecretKeySpec;
-import javax.crypto.Mac;
-
-import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpResponse;
-import org.apache.http.entity.ByteArrayEntity;
-import org.apache.http.entity.FileEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.util.EntityUtils;
 
 /**
  * A simple class to upload files to S3.
- * Optionally, gzip the data or files first using java.util.zip.GZIPOutputStream and then setting the DETECT_GZIP option.
+ * Optionally, gzip the data or files first using java.util.zip.GZIPOutputStream and then setting the DETECT_GZIP option,
+ * or set the COMPRESS_GZIP option to have them compressed as they are sent.
+ * Requests go through a shared S3ClientPool so connections are kept alive and reused between uploads.
+ * Every upload returns its own S3Request, so a connection can run any number of uploads at once.
+ * Large files can be sent in parts with the MULTIPART option, which can resume an interrupted upload.
+ * Requests that fail because of the network, a server error or throttling are sent again as the S3RetryPolicy allows.
  */
 public final class S3Connection
 {
@@ -41,17 +47,45 @@ public final class S3Connection
 	public static final int PERMANENT_CACHE = (1<<2);
 	public static final int REDUCED_REDUNDANCY = (1<<3);
 	public static final int HTTPS = (1<<4);
+	public static final int MULTIPART = (1<<5);
+	// Skip files whose ETag in the upload cache says they were already uploaded to the key
+	public static final int SKIP_UNCHANGED = (1<<6);
+	// Ask S3 for the ETag of the key with a HEAD request first, and skip the upload if it matches
+	public static final int CHECK_REMOTE = (1<<7);
+	// Compress the body with gzip as it is sent, unless its type is already compressed. Not combined with MULTIPART
+	public static final int COMPRESS_GZIP = (1<<8);
+
+	// S3 does not accept parts smaller than 5 MB, except for the last one
+	public static final long MIN_PART_SIZE = 5 * 1024 * 1024;
+	public static final long DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+	public static final int DEFAULT_PART_CONCURRENCY = S3ClientPool.DEFAULT_MAX_PER_HOST;
+
+	public static final int DEFAULT_BATCH_CONCURRENCY = S3UploadScheduler.DEFAULT_WORKERS;
+
+	public static final long DEFAULT_PROGRESS_BYTES = 64 * 1024;
+	public static final long DEFAULT_PROGRESS_INTERVAL = 100;
+
+	public static final int DEFAULT_GZIP_LEVEL = Deflater.DEFAULT_COMPRESSION;
+	public static final int DEFAULT_GZIP_BUFFER_SIZE = 32 * 1024;
+
+	// How the body is signed once a region is set and requests use signature version 4
+	public static final int PAYLOAD_STREAMING = 0;
+	public static final int PAYLOAD_UNSIGNED = 1;
 
-	private static final String DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss +0000";
 	private static final String TAG = "S3Connection";
 
 	private static final String URL = "http://%s.s3.amazonaws.com/%s";
 	private static final String URL_SECURE = "https://%s.s3.amazonaws.com/%s";
+	private static final String URL_REGION = "http://%s.s3.%s.amazonaws.com/%s";
+	private static final String URL_REGION_SECURE = "https://%s.s3.%s.amazonaws.com/%s";
 
-	private static final String ERROR_BADCONNECTION = "Could not establish connection.";
-	private static final String ERROR_MISSINGPARAMS = "Missing parameters required for this operation.";
-	private static final String ERROR_BADPATH = "Could not open or read file.";
-	private static final String ERROR_HTTPERROR = "There was a problem with the request.";
+	static final String ERROR_BADCONNECTION = "Could not establish connection.";
+	static final String ERROR_MISSINGPARAMS = "Missing parameters required for this operation.";
+	static final String ERROR_BADPATH = "Could not open or read file.";
+	static final String ERROR_HTTPERROR = "There was a problem with the request.";
+	private static final String ERROR_QUEUEFULL = "Too many uploads are waiting to be sent.";
+	static final String ERROR_CIRCUITOPEN = "Too many requests to this bucket have failed, try again later.";
+	private static final String ERROR_SHUTDOWN = "The upload scheduler has been shut down.";
 
 	public interface RequestListener
 	{
@@ -60,6 +94,25 @@ public final class S3Connection
 		void requestFailed(S3Connection connection, String key, String errorMessage);
 	}
 
+	/**
+	 * Tells when a download started with downloadFile finishes, on the UI thread.
+	 */
+	public interface DownloadListener
+	{
+		void downloadedFile(S3Connection connection, String key, File file);
+		void downloadFailed(S3Connection connection, String key, String errorMessage);
+	}
+
+	/**
+	 * Tells how much of an upload has been sent, or of a download received, on the UI thread. Reports are throttled by setProgressThreshold,
+	 * and a report that is still waiting for the UI thread is not posted again, it reads the latest count when it runs.
+	 * A RequestListener or DownloadListener that also implements ProgressListener gets the progress of its own requests.
+	 */
+	public interface ProgressListener
+	{
+		void uploadProgress(S3Connection connection, S3Request request, long bytesSent, long bytesTotal);
+	}
+
 	// Base class to make implementing anonymous classes easier
 	public static class BasicRequestListener implements RequestListener
 	{
@@ -79,12 +132,33 @@ public final class S3Connection
 		}
 	}
 	
-	private HttpRequestBase request;
 	private RequestListener listener;
 	private String accessKeyId;
 	private String secretAccessKey;
-	private String error;
+	private S3Signer signer;
+	private S3SignerV4 signerV4;
+	private String region;
+	private int payloadSigning = PAYLOAD_STREAMING;
+	private volatile String error;
 	private HashMap<String, String> extraHeaders = new HashMap<String, String>();
+	private final HashSet<S3Request> activeRequests = new HashSet<S3Request>();
+	private S3ClientPool clientPool = S3ClientPool.getDefault();
+	private S3UploadScheduler scheduler = S3UploadScheduler.getDefault();
+	private int priority = S3UploadScheduler.PRIORITY_NORMAL;
+	private long partSize = DEFAULT_PART_SIZE;
+	private int partConcurrency = DEFAULT_PART_CONCURRENCY;
+	private S3RetryPolicy retryPolicy = S3RetryPolicy.getDefault();
+	private File resumeDirectory;
+	private S3UploadCache uploadCache;
+	private int gzipLevel = DEFAULT_GZIP_LEVEL;
+	private int gzipBufferSize = DEFAULT_GZIP_BUFFER_SIZE;
+	private S3Metrics metrics;
+	private volatile S3RateLimiter rateLimiter;
+	private volatile S3ConcurrencyController concurrencyController;
+	private ProgressListener progressListener;
+	private long progressBytes = DEFAULT_PROGRESS_BYTES;
+	private long progressInterval = DEFAULT_PROGRESS_INTERVAL;
+	private int batchConcurrency = DEFAULT_BATCH_CONCURRENCY;
 	public String bucket;
 
 	public S3Connection(String accessKeyId, String secretAccessKey, RequestListener requestListener)
@@ -94,10 +168,31 @@ public final class S3Connection
 		this.listener = requestListener;
 	}
 
+	/**
+	 * Cancels every upload started by this connection that has not finished yet.
+	 * Use S3Request.cancel to cancel a single upload.
+	 */
 	public void cancel()
 	{
-		if(this.request != null)
-			this.request.abort();
+		ArrayList<S3Request> requests;
+
+		synchronized(this.activeRequests)
+		{
+			requests = new ArrayList<S3Request>(this.activeRequests);
+		}
+		for(S3Request request : requests)
+			request.cancel();
+	}
+
+	/**
+	 * Returns the number of uploads that are queued or running.
+	 */
+	public int getActiveCount()
+	{
+		synchronized(this.activeRequests)
+		{
+			return this.activeRequests.size();
+		}
 	}
 
 	public RequestListener getListener()
@@ -105,61 +200,301 @@ public final class S3Connection
 		return this.listener;
 	}
 
+	/**
+	 * Returns the error of the most recent upload to fail. S3Request.getError has the error of a particular upload.
+	 */
 	public String getError()
 	{
 		return this.error;
 	}
 
+	public S3ClientPool getClientPool()
+	{
+		return this.clientPool;
+	}
+
+	/**
+	 * Uses a pool other than the shared default, for example one with different connection limits.
+	 */
+	public void setClientPool(S3ClientPool clientPool)
+	{
+		this.clientPool = clientPool;
+	}
+
+	public S3UploadScheduler getScheduler()
+	{
+		return this.scheduler;
+	}
+
+	/**
+	 * Runs uploads on a scheduler other than the shared default, for example one with more workers.
+	 */
+	public void setScheduler(S3UploadScheduler scheduler)
+	{
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Sets the S3UploadScheduler priority of the uploads started after this call.
+	 */
+	public void setPriority(int priority)
+	{
+		this.priority = priority;
+	}
+
+	public long getPartSize()
+	{
+		return this.partSize;
+	}
+
+	/**
+	 * Sets the size of the parts of a MULTIPART upload and of a download, files no larger than one part are sent with a single PUT
+	 * and objects no larger than one part are fetched with a single GET.
+	 */
+	public void setPartSize(long partSize)
+	{
+		this.partSize = Math.max(partSize, MIN_PART_SIZE);
+	}
+
+	/**
+	 * Returns how many parts of an upload or download are sent at once, no more than the limit of the concurrency controller.
+	 */
+	public int getPartConcurrency()
+	{
+		S3ConcurrencyController controller = this.concurrencyController;
+		return controller != null ? Math.min(this.partConcurrency, controller.getLimit()) : this.partConcurrency;
+	}
+
+	/**
+	 * Sets how many parts of a MULTIPART upload or a download are sent at once. The client pool limits the connections to a single bucket as well.
+	 * With a concurrency controller this is the most that are sent at once.
+	 */
+	public void setPartConcurrency(int partConcurrency)
+	{
+		this.partConcurrency = Math.max(partConcurrency, 1);
+	}
+
+	public S3RetryPolicy getRetryPolicy()
+	{
+		return this.retryPolicy;
+	}
+
+	/**
+	 * Sets when failed requests are sent again, every request of an upload including the parts of a MULTIPART upload is retried on its own.
+	 * Pass S3RetryPolicy.NONE to report the first failure.
+	 */
+	public void setRetryPolicy(S3RetryPolicy retryPolicy)
+	{
+		this.retryPolicy = retryPolicy != null ? retryPolicy : S3RetryPolicy.NONE;
+	}
+
+	public File getResumeDirectory()
+	{
+		return this.resumeDirectory;
+	}
+
+	/**
+	 * Sets where MULTIPART uploads save their upload ID and finished parts.
+	 * Uploading the same file to the same key again resumes an upload that failed or was cancelled, sending only the missing parts.
+	 * Without a directory, an upload that fails or is cancelled is aborted on S3.
+	 */
+	public void setResumeDirectory(File resumeDirectory)
+	{
+		this.resumeDirectory = resumeDirectory;
+	}
+
+	public S3UploadCache getUploadCache()
+	{
+		return this.uploadCache;
+	}
+
+	/**
+	 * Sets the cache of file MD5s and ETags. Files found in it are not hashed again,
+	 * and with SKIP_UNCHANGED files already uploaded to the same key are not sent again.
+	 */
+	public void setUploadCache(S3UploadCache uploadCache)
+	{
+		this.uploadCache = uploadCache;
+	}
+
+	public int getGzipLevel()
+	{
+		return this.gzipLevel;
+	}
+
+	/**
+	 * Sets the compression level of COMPRESS_GZIP uploads, from Deflater.BEST_SPEED to Deflater.BEST_COMPRESSION.
+	 */
+	public void setGzipLevel(int gzipLevel)
+	{
+		this.gzipLevel = gzipLevel;
+	}
+
+	public int getGzipBufferSize()
+	{
+		return this.gzipBufferSize;
+	}
+
+	/**
+	 * Sets how much of the body COMPRESS_GZIP reads and compresses at a time.
+	 */
+	public void setGzipBufferSize(int gzipBufferSize)
+	{
+		this.gzipBufferSize = Math.max(gzipBufferSize, 512);
+	}
+
+	public int getBatchConcurrency()
+	{
+		return this.batchConcurrency;
+	}
+
+	/**
+	 * Sets how many uploads of a batch started after this call are queued or running at once.
+	 */
+	public void setBatchConcurrency(int batchConcurrency)
+	{
+		this.batchConcurrency = Math.max(batchConcurrency, 1);
+	}
+
+	public ProgressListener getProgressListener()
+	{
+		return this.progressListener;
+	}
+
+	/**
+	 * Reports the progress of uploads started after this call whose RequestListener is not a ProgressListener itself.
+	 */
+	public void setProgressListener(ProgressListener progressListener)
+	{
+		this.progressListener = progressListener;
+	}
+
+	/**
+	 * Sets how often progress is reported: once at least bytes more have been sent and at least intervalMillis have passed
+	 * since the last report. A successful upload always reports its final count before the RequestListener is told.
+	 */
+	public void setProgressThreshold(long bytes, long intervalMillis)
+	{
+		this.progressBytes = Math.max(bytes, 1);
+		this.progressInterval = Math.max(intervalMillis, 0);
+	}
+
+	public S3Metrics getMetrics()
+	{
+		return this.metrics;
+	}
+
+	/**
+	 * Records the timings and counts of the uploads started after this call in metrics, which can be shared by several connections.
+	 * Pass null to stop recording.
+	 */
+	public void setMetrics(S3Metrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
+	public S3RateLimiter getRateLimiter()
+	{
+		return this.rateLimiter;
+	}
+
+	/**
+	 * Limits how fast the bodies of the uploads started after this call are written. Share one S3RateLimiter between
+	 * connections to cap them all together. Pass null to send as fast as the network allows.
+	 */
+	public void setRateLimiter(S3RateLimiter rateLimiter)
+	{
+		this.rateLimiter = rateLimiter;
+	}
+
+	public S3ConcurrencyController getConcurrencyController()
+	{
+		return this.concurrencyController;
+	}
+
+	/**
+	 * Lets controller change how many uploads run at once and how many parts they send at once, from how the requests of this connection do.
+	 * The connection uses the controller's scheduler from now on. Pass null to keep the current limits.
+	 */
+	public void setConcurrencyController(S3ConcurrencyController controller)
+	{
+		if(controller != null)
+			this.scheduler = controller.getScheduler();
+		this.concurrencyController = controller;
+	}
+
+	/**
+	 * Extra headers are copied into each upload when it is started, changing them does not affect uploads already started.
+	 */
 	public void setExtraHeader(String header, String value)
 	{
-		this.extraHeaders.put(header, value);
+		synchronized(this.extraHeaders)
+		{
+			this.extraHeaders.put(header, value);
+		}
 	}
 
 	public void clearExtraHeaders()
 	{
-		this.extraHeaders.clear();
+		synchronized(this.extraHeaders)
+		{
+			this.extraHeaders.clear();
+		}
 	}
 
-	// http://docs.aws.amazon.com/AmazonS3/latest/dev/RESTAuthentication.html
-	private String getAuthorizationHeader(String verb, String md5, String contentType, String date, String resource)
+	public synchronized String getRegion()
 	{
-		String signature;
-		String canonicalizedResource;
-		String stringToSign;
-		SecretKey key;
-		Mac mac;
-		String hmac;
+		return this.region;
+	}
 
-		if(md5 == null)
-			md5 = "";
-		if(contentType == null)
-			contentType = "";
+	/**
+	 * Sets the region of the bucket, for example "eu-central-1". Requests then go to the regional endpoint
+	 * and are signed with signature version 4, which regions opened since 2014 require. Pass null to go back to version 2.
+	 */
+	public synchronized void setRegion(String region)
+	{
+		this.region = region;
+		this.signerV4 = null;
+	}
 
-		// Create the string to sign
-		if(resource.startsWith("/"))
-			canonicalizedResource = String.format("/%s%s", this.bucket, resource);
-		else
-			canonicalizedResource = String.format("/%s/%s", this.bucket, resource);
-		stringToSign = String.format("%s\n%s\n%s\n%s\n%s", verb, md5, contentType, date, canonicalizedResource);
+	public int getPayloadSigning()
+	{
+		return this.payloadSigning;
+	}
 
-		// Create the signature
-		try
-		{
-			key = new SecretKeySpec(this.secretAccessKey.getBytes(), "HmacSHA1");
-			mac = Mac.getInstance("HmacSHA1");
-			mac.init(key);
-			mac.update(stringToSign.getBytes());
-			signature = Base64.encode(mac.doFinal());
-		} catch(Exception e) { Log.e(TAG, "HMAC failed with error: " + e.getMessage()); return ""; }
+	/**
+	 * Sets how bodies are signed with signature version 4.
+	 * PAYLOAD_STREAMING signs the body in chunks as it is sent, PAYLOAD_UNSIGNED leaves it to TLS and Content-MD5.
+	 * Neither reads the body before sending it, so no Content-MD5 is sent unless it is already known.
+	 */
+	public void setPayloadSigning(int payloadSigning)
+	{
+		this.payloadSigning = payloadSigning;
+	}
 
-		return String.format("AWS %s:%s", this.accessKeyId, signature);
+	// Returns the signer, which is made the first time it is needed and then reused by every request
+	private synchronized S3Signer getSigner()
+	{
+		if(this.signer == null)
+			this.signer = new S3Signer(this.accessKeyId, this.secretAccessKey);
+		return this.signer;
 	}
 
-	private static String getDateHeader()
+	// Returns null when requests use signature version 2
+	private synchronized S3SignerV4 getSignerV4()
 	{
-		SimpleDateFormat formatter = new SimpleDateFormat(DATE_FORMAT);
-		formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
-		return formatter.format(new Date());
+		if(this.signerV4 == null && this.region != null)
+			this.signerV4 = new S3SignerV4(this.accessKeyId, this.secretAccessKey, this.region);
+		return this.signerV4;
+	}
+
+	// http://docs.aws.amazon.com/AmazonS3/latest/dev/RESTAuthentication.html
+	private String getAuthorizationHeader(String verb, String md5, String contentType, String date, Map<String, String> amzHeaders, String bucket, String resource)
+	{
+		try
+		{
+			return this.getSigner().sign(verb, md5, contentType, date, amzHeaders, bucket, resource);
+		} catch(Exception e) { Log.e(TAG, "HMAC failed with error: " + e.getMessage()); return ""; }
 	}
 
 	private static String getMimeType(String path)
@@ -168,16 +503,22 @@ public final class S3Connection
 		return MimeTypeMap.getSingleton().getMimeTypeFromExtension(components[components.length - 1]);
 	}
 
-	private static String convertStreamToString(InputStream is)
+	// Types that are compressed already and would only get bigger
+	private static boolean isCompressible(String contentType)
 	{
-		try {
-			return new Scanner(is).useDelimiter("\\A").next();
-		} catch (java.util.NoSuchElementException e) {
-			return "";
-		}
+		if(contentType == null)
+			return true;
+		contentType = contentType.toLowerCase(Locale.US);
+		if(contentType.startsWith("image/"))
+			return contentType.startsWith("image/svg") || contentType.equals("image/bmp") || contentType.equals("image/x-icon");
+		if(contentType.startsWith("video/") || contentType.startsWith("audio/") || contentType.startsWith("font/woff"))
+			return false;
+		return !(contentType.equals("application/zip") || contentType.equals("application/gzip") || contentType.equals("application/x-gzip")
+			|| contentType.equals("application/x-bzip2") || contentType.equals("application/x-xz") || contentType.equals("application/x-7z-compressed")
+			|| contentType.equals("application/x-rar-compressed") || contentType.equals("application/pdf") || contentType.equals("application/vnd.android.package-archive"));
 	}
 
-	private static void runOnUiThread(Runnable action)
+	static void runOnUiThread(Runnable action)
 	{
 		Handler mainHandler = new Handler(Looper.getMainLooper());
 		if(mainHandler.getLooper() == Looper.myLooper())
@@ -186,234 +527,826 @@ public final class S3Connection
 			mainHandler.post(action);
 	}
 
-	private static byte[] convertStreamToMD5(InputStream is)
+	public S3Request uploadData(byte[] data, String contentType, String key, int options)
 	{
-		try
+		return this.uploadData(data, contentType, key, options, this.listener);
+	}
+
+	/**
+	 * Uploads data, calling requestListener instead of the connection's listener when it finishes.
+	 */
+	public S3Request uploadData(byte[] data, String contentType, String key, int options, RequestListener requestListener)
+	{
+		S3Request request = this.createRequest(key, options, data != null ? new S3Body.DataBody(data) : null, contentType, requestListener);
+
+		if(data == null || key == null || data.length == 0 || key.length() == 0)
+			this.fail(request, ERROR_MISSINGPARAMS);
+		else
+			this.start(request);
+		return request;
+	}
+
+	public S3Request uploadFile(File file, String key, int options)
+	{
+		return this.uploadFile(file, key, options, this.listener);
+	}
+
+	/**
+	 * Uploads file, calling requestListener instead of the connection's listener when it finishes.
+	 */
+	public S3Request uploadFile(File file, String key, int options, RequestListener requestListener)
+	{
+		return this.uploadFile(file, key, options, null, requestListener);
+	}
+
+	/**
+	 * Uploads file with a Content-MD5 that is already known, for example one saved from an earlier upload, so the file is only read to be sent.
+	 * contentMD5 is the base64 encoded MD5 of the whole file, pass null to have it computed.
+	 * Parts of a MULTIPART upload still have their own MD5 computed.
+	 */
+	public S3Request uploadFile(File file, String key, int options, String contentMD5, RequestListener requestListener)
+	{
+		S3Body body = file != null ? new S3Body.FileBody(file) : null;
+		S3Request request;
+
+		if(body != null && contentMD5 != null)
+			body.setContentMD5(contentMD5);
+		request = this.createRequest(key, options, body, null, requestListener);
+
+		if(key == null || key.length() == 0)
+			this.fail(request, ERROR_MISSINGPARAMS);
+		else if(file == null || !file.canRead() || !file.exists())
+			this.fail(request, ERROR_BADPATH);
+		else
+			this.start(request);
+		return request;
+	}
+
+	public S3Request uploadBuffer(ByteBuffer buffer, String contentType, String key, int options)
+	{
+		return this.uploadBuffer(buffer, contentType, key, options, this.listener);
+	}
+
+	/**
+	 * Uploads the bytes of buffer from its position to its limit, which may be a direct buffer or a mapped file.
+	 * The MD5 is computed from the buffer itself and the body is written from it without copying it into an array first.
+	 * The position and limit of buffer are left alone, but its content must not change until the request finishes.
+	 */
+	public S3Request uploadBuffer(ByteBuffer buffer, String contentType, String key, int options, RequestListener requestListener)
+	{
+		S3Request request = this.createRequest(key, options, buffer != null ? new S3Body.BufferBody(buffer) : null, contentType, requestListener);
+
+		if(buffer == null || key == null || !buffer.hasRemaining() || key.length() == 0)
+			this.fail(request, ERROR_MISSINGPARAMS);
+		else
+			this.start(request);
+		return request;
+	}
+
+	public S3Request uploadFileRegion(File file, long offset, long length, String key, int options)
+	{
+		return this.uploadFileRegion(file, offset, length, key, options, this.listener);
+	}
+
+	/**
+	 * Uploads length bytes of file starting at offset as one object, read through the file's channel as uploadFile does.
+	 * The region is sent in a single PUT, MULTIPART is ignored, and the upload cache is not used.
+	 */
+	public S3Request uploadFileRegion(File file, long offset, long length, String key, int options, RequestListener requestListener)
+	{
+		S3Request request = this.createRequest(key, options, file != null ? new S3Body.FileRegionBody(file, offset, length) : null, null, requestListener);
+
+		if(key == null || key.length() == 0 || offset < 0 || length <= 0)
+			this.fail(request, ERROR_MISSINGPARAMS);
+		else if(file == null || !file.canRead() || !file.exists() || offset + length > file.length())
+			this.fail(request, ERROR_BADPATH);
+		else
+			this.start(request);
+		return request;
+	}
+
+	public S3Request downloadFile(String key, File file, int options)
+	{
+		return this.downloadFile(key, file, options, this.listener instanceof DownloadListener ? (DownloadListener)this.listener : null);
+	}
+
+	/**
+	 * Downloads the object under key into file, replacing it, and calls downloadListener when it finishes.
+	 * Objects bigger than the part size are fetched in parts, partConcurrency at a time. Of the options only HTTPS is used.
+	 * The file is deleted if the download fails or is cancelled, and S3Request.getBytesSent counts the bytes received.
+	 */
+	public S3Request downloadFile(String key, File file, int options, DownloadListener downloadListener)
+	{
+		S3Request request = new S3Request(this, this.bucket, key, options, null, null, new HashMap<String, String>(), null);
+
+		request.downloadFile = file;
+		request.downloadListener = downloadListener;
+		request.progressListener = downloadListener instanceof ProgressListener ? (ProgressListener)downloadListener : this.progressListener;
+		request.progressBytes = this.progressBytes;
+		request.progressInterval = this.progressInterval * 1000000;
+
+		if(key == null || key.length() == 0 || file == null)
+			this.fail(request, ERROR_MISSINGPARAMS);
+		else
+			this.start(request);
+		return request;
+	}
+
+	public S3Batch uploadBatch(Collection<S3UploadSpec> specs)
+	{
+		return this.uploadBatch(specs, null);
+	}
+
+	/**
+	 * Uploads every spec over the shared client pool and scheduler, batchConcurrency at a time,
+	 * highest priority first and then smallest first, and calls batchListener once they have all finished.
+	 * Uploads that cannot be started fail straight away. Use S3Batch.getRequests for the result of each one.
+	 */
+	public S3Batch uploadBatch(Collection<S3UploadSpec> specs, S3Batch.BatchListener batchListener)
+	{
+		ArrayList<S3Request> requests = new ArrayList<S3Request>(specs.size());
+		ArrayList<S3Batch.Item> items = new ArrayList<S3Batch.Item>(specs.size());
+		S3Batch batch;
+
+		for(S3UploadSpec spec : specs)
 		{
-			byte[] bytes = new byte[512];
-			MessageDigest md = MessageDigest.getInstance("MD5");
-			int read = 0;
+			S3Request request = this.createRequest(spec, this.bucket);
+			String error = getStartError(spec);
+
+			requests.add(request);
+			// Uploads that cannot be started fail straight away, as with uploadData and uploadFile, and are not part of the batch
+			if(error != null)
+				this.fail(request, error);
+			else
+				items.add(new S3Batch.Item(request, spec.priority, spec.getLength()));
+		}
+		Collections.sort(items);
 
-			while(read >= 0)
+		batch = new S3Batch(this, requests, items, this.batchConcurrency, batchListener);
+		synchronized(this.activeRequests)
+		{
+			for(S3Batch.Item item : items)
 			{
-				read = is.read(bytes);
-				if(read > 0)
-					md.update(bytes, 0, read);
+				item.request.finishListener = batch.finishListener;
+				// Counted as active while they wait in the batch, so cancel reaches them
+				this.activeRequests.add(item.request);
 			}
-			return md.digest();
-		} catch(Exception e) { return null; }
+		}
+		batch.start();
+		return batch;
 	}
 
-	public void uploadData(final byte[] data, final String contentType, final String key, final int options)
+	// Starts the upload of spec to bucket and tells finishListener when it is done, used by S3UploadQueue
+	S3Request upload(S3UploadSpec spec, String bucket, S3Request.FinishListener finishListener)
 	{
-		if(data == null || key == null || data.length == 0 || key.length() == 0)
+		S3Request request = this.createRequest(spec, bucket);
+		String error = getStartError(spec);
+
+		request.finishListener = finishListener;
+		if(error != null)
+			this.fail(request, error);
+		else
+			this.start(request, spec.priority);
+		return request;
+	}
+
+	// Returns why the upload of spec cannot be started, or null
+	private static String getStartError(S3UploadSpec spec)
+	{
+		if(spec.key == null || spec.key.length() == 0 || (spec.file == null && (spec.data == null || spec.data.length == 0)))
+			return ERROR_MISSINGPARAMS;
+		if(spec.file != null && (!spec.file.canRead() || !spec.file.exists()))
+			return ERROR_BADPATH;
+		return null;
+	}
+
+	private S3Request createRequest(S3UploadSpec spec, String bucket)
+	{
+		S3Body body = spec.file != null ? new S3Body.FileBody(spec.file) : (spec.data != null ? new S3Body.DataBody(spec.data) : null);
+
+		if(body != null && spec.contentMD5 != null)
+			body.setContentMD5(spec.contentMD5);
+		return this.createRequest(bucket, spec.key, spec.options, body, spec.contentType, spec.listener);
+	}
+
+	// Creates the handle for an upload, the bucket and extra headers are copied so later changes do not affect it
+	private S3Request createRequest(String key, int options, S3Body body, String contentType, RequestListener requestListener)
+	{
+		return this.createRequest(this.bucket, key, options, body, contentType, requestListener);
+	}
+
+	private S3Request createRequest(String bucket, String key, int options, S3Body body, String contentType, RequestListener requestListener)
+	{
+		HashMap<String, String> headers;
+
+		synchronized(this.extraHeaders)
 		{
-			this.error = ERROR_MISSINGPARAMS;
-			if(this.listener != null)
-				this.listener.requestFailed(this, key, this.error);
-			return;
+			headers = new HashMap<String, String>(this.extraHeaders);
 		}
+		S3Request request = new S3Request(this, bucket, key, options, body, contentType, headers, requestListener);
+		request.metrics = this.metrics;
+		request.rateLimiter = this.rateLimiter;
+		request.progressListener = requestListener instanceof ProgressListener ? (ProgressListener)requestListener : this.progressListener;
+		request.progressBytes = this.progressBytes;
+		request.progressInterval = this.progressInterval * 1000000;
+		return request;
+	}
 
-		this.cancel();
+	private void start(S3Request request)
+	{
+		this.start(request, this.priority);
+	}
 
-		Thread thread = new Thread(new Runnable() {
-			public void run()
-			{
-				try
-				{
-					FileInputStream fileInputStream;
-					String dataContentType, md5, authorization, date;
-					HttpPut request;
-					DefaultHttpClient client;
-					HttpResponse response;
-					HttpEntity entity;
-					
-					// Calculate the MD5 and other headers
-					if(contentType != null && contentType.length() > 0)
-						dataContentType = contentType;
-					else
-						dataContentType = getMimeType(key);
-					md5 = Base64.encode(convertStreamToMD5(new ByteArrayInputStream(data)));
-					date = getDateHeader();
-					authorization = S3Connection.this.getAuthorizationHeader("PUT", md5, dataContentType, date, key);
+	// Queues an upload or download on the scheduler, reporting a failure if the queue does not accept it
+	void start(final S3Request request, int priority)
+	{
+		synchronized(this.activeRequests)
+		{
+			this.activeRequests.add(request);
+		}
+		if(request.metrics != null)
+			request.metrics.uploadQueued();
 
-					if((options & HTTPS) != 0)
-						request = new HttpPut(String.format(URL_SECURE, S3Connection.this.bucket, key));
-					else
-						request = new HttpPut(String.format(URL, S3Connection.this.bucket, key));
-					S3Connection.this.request = request;
-
-					// Check for the gzip magic number and add the Content-Encoding header
-					if((options & DETECT_GZIP) != 0 && data[0] == 0x1f && data[1] == 0x8b)
-						request.setHeader("Content-Encoding", "gzip");
-					if((options & NO_CACHE) != 0)
-						request.setHeader("Cache-Control", "no-cache");
-					if((options & PERMANENT_CACHE) != 0)
-						request.setHeader("Cache-Control", "max-age=315360000");
-					if((options & REDUCED_REDUNDANCY) != 0)
-						request.setHeader("x-amz-storage-class", "REDUCED_REDUNDANCY");
-					// Note: Content-Length is set automatically by the entity. Adding a Content-Length will cause an exception
-					if(dataContentType != null && dataContentType.length() > 0)
-						request.setHeader("Content-Type", dataContentType);
-					request.setHeader("Content-MD5", md5);
-					request.setHeader("Date", date);
-					request.setHeader("Authorization", authorization);
-					for(Entry<String, String> extraHeader : S3Connection.this.extraHeaders.entrySet())
-						request.addHeader(extraHeader.getKey(), extraHeader.getValue());
-					request.setEntity(new ByteArrayEntity(data));
-					
-					client = new DefaultHttpClient();
-					response = client.execute(request);
-					
-					if(response.getStatusLine().getStatusCode() != 200)
-					{
-						int start, end;
-						String responseString = S3Connection.this.convertStreamToString(response.getEntity().getContent());
-						start = responseString.indexOf("<Message>");
-						end = responseString.indexOf("</Message>");
-						if(start >= 0 && end >= 0)
-							S3Connection.this.error = responseString.substring(start, end - 1);
-						else
-							S3Connection.this.error = ERROR_HTTPERROR;
-						if(S3Connection.this.listener != null)
-							S3Connection.runOnUiThread(new Runnable() { public void run() { S3Connection.this.listener.requestFailed(S3Connection.this, key, S3Connection.this.error); } });
-					}
+		try
+		{
+			this.scheduler.execute(new S3UploadScheduler.DroppableTask() {
+				public void run()
+				{
+					if(request.downloadFile != null)
+						S3Connection.this.performDownload(request);
 					else
-					{
-						if(S3Connection.this.listener != null)
-							S3Connection.runOnUiThread(new Runnable() { public void run() { S3Connection.this.listener.uploadedData(S3Connection.this, key); } });
-					}
+						S3Connection.this.perform(request);
 				}
-				catch(Exception e)
+
+				// Removed from the queue by shutdownNow, the request never started so it fails
+				public void dropped()
 				{
-					if(!request.isAborted())
-					{
-						S3Connection.this.error = e.getMessage();
-						if(S3Connection.this.listener != null)
-							S3Connection.runOnUiThread(new Runnable() { public void run() { S3Connection.this.listener.requestFailed(S3Connection.this, key, S3Connection.this.error); } });
-					}
+					if(!request.begin())
+						return;
+					if(request.metrics != null)
+						request.metrics.uploadStarted(false);
+					S3Connection.this.complete(request, ERROR_SHUTDOWN);
 				}
-			}
-		});
-		thread.start();
+			}, priority);
+		}
+		catch(RejectedExecutionException e)
+		{
+			if(request.metrics != null)
+				request.metrics.uploadStarted(false);
+			this.fail(request, this.scheduler.isShutdown() ? ERROR_SHUTDOWN : ERROR_QUEUEFULL);
+		}
 	}
 
-	public void uploadFile(final File file, final String key, final int options)
+	// Called once a request has been cancelled, or has finished and its listener has been posted
+	void requestFinished(S3Request request)
 	{
-		if(key == null || key.length() == 0)
+		synchronized(this.activeRequests)
 		{
-			this.error = ERROR_MISSINGPARAMS;
-			if(this.listener != null)
-				this.listener.requestFailed(this, key, this.error);
-			return;
+			this.activeRequests.remove(request);
 		}
+		if(request.finishListener != null)
+			request.finishListener.requestFinished(request);
+	}
 
-		if(!file.canRead() || !file.exists())
-		{
-			this.error = ERROR_BADPATH;
-			if(this.listener != null)
-				this.listener.requestFailed(this, key, this.error);
+	// Posts a progress report to the UI thread unless one is already waiting, called by S3Request as bytes are counted
+	void postProgress(final S3Request request)
+	{
+		if(!request.progressPosted.compareAndSet(false, true))
 			return;
-		}
 
-		this.cancel();
-
-		Thread thread = new Thread(new Runnable() {
+		S3Connection.runOnUiThread(new Runnable() {
 			public void run()
 			{
-				try
+				request.progressPosted.set(false);
+				// A cancelled upload reports nothing more, as with the RequestListener
+				if(!request.isCancelled())
+					request.progressListener.uploadProgress(S3Connection.this, request, request.getBytesSent(), request.getBytesTotal());
+			}
+		});
+	}
+
+	// Reports a failure on the calling thread, used before the upload has been queued
+	private void fail(S3Request request, String error)
+	{
+		RequestListener requestListener = request.getListener();
+
+		if(!request.finish(error))
+			return;
+		this.error = error;
+		if(request.downloadListener != null)
+			request.downloadListener.downloadFailed(this, request.getKey(), error);
+		else if(requestListener != null)
+			requestListener.requestFailed(this, request.getKey(), error);
+		this.requestFinished(request);
+	}
+
+	// Records the outcome of an upload and tells its listener on the UI thread, unless it was cancelled
+	private void complete(final S3Request request, final String error)
+	{
+		final RequestListener requestListener = request.getListener();
+		final DownloadListener downloadListener = request.downloadListener;
+
+		if(!request.finish(error))
+			return;
+		if(error != null)
+			this.error = error;
+		// The last bytes may have been under the threshold
+		if(error == null && request.progressListener != null)
+			this.postProgress(request);
+		if(downloadListener != null)
+		{
+			S3Connection.runOnUiThread(new Runnable() {
+				public void run()
 				{
-					FileInputStream fileInputStream;
-					String contentType, md5, authorization, date;
-					HttpPut request;
-					DefaultHttpClient client;
-					HttpResponse response;
-					HttpEntity entity;
-					
-					// Calculate the MD5 and other headers
-					contentType = getMimeType(file.getName());
-					fileInputStream = new FileInputStream(file);
-					md5 = Base64.encode(convertStreamToMD5(fileInputStream));
-					fileInputStream.close();
-					date = getDateHeader();
-					authorization = S3Connection.this.getAuthorizationHeader("PUT", md5, contentType, date, key);
-
-					if((options & HTTPS) != 0)
-						request = new HttpPut(String.format(URL_SECURE, S3Connection.this.bucket, key));
+					if(error != null)
+						downloadListener.downloadFailed(S3Connection.this, request.getKey(), error);
 					else
-						request = new HttpPut(String.format(URL, S3Connection.this.bucket, key));
-					S3Connection.this.request = request;
-
-					if((options & DETECT_GZIP) != 0)
-					{
-						fileInputStream = new FileInputStream(file);
-						if(fileInputStream.read() == 0x1f && fileInputStream.read() == 0x8b)
-							request.setHeader("Content-Encoding", "gzip");
-						fileInputStream.close();
-					}
-					if((options & NO_CACHE) != 0)
-						request.setHeader("Cache-Control", "no-cache");
-					if((options & PERMANENT_CACHE) != 0)
-						request.setHeader("Cache-Control", "max-age=315360000");
-					if((options & REDUCED_REDUNDANCY) != 0)
-						request.setHeader("x-amz-storage-class", "REDUCED_REDUNDANCY");
-					// Note: Content-Length is set automatically by the entity. Adding a Content-Length will cause an exception
-					if(contentType != null && contentType.length() > 0)
-						request.setHeader("Content-Type", contentType);
-					request.setHeader("Content-MD5", md5);
-					request.setHeader("Date", date);
-					request.setHeader("Authorization", authorization);
-					for(Entry<String, String> extraHeader : S3Connection.this.extraHeaders.entrySet())
-						request.addHeader(extraHeader.getKey(), extraHeader.getValue());
-					request.setEntity(new FileEntity(file, contentType));
-
-					client = new DefaultHttpClient();
-					response = client.execute(request);
-
-					if(response.getStatusLine().getStatusCode() != 200)
-					{
-						int start, end;
-						String responseString = S3Connection.this.convertStreamToString(response.getEntity().getContent());
-						start = responseString.indexOf("<Message>");
-						end = responseString.indexOf("</Message>");
-						if(start >= 0 && end >= 0)
-							S3Connection.this.error = responseString.substring(start, end - 1);
-						else
-							S3Connection.this.error = ERROR_HTTPERROR;
-						if(S3Connection.this.listener != null)
-							S3Connection.runOnUiThread(new Runnable() { public void run() { S3Connection.this.listener.requestFailed(S3Connection.this, key, S3Connection.this.error); } });
-					}
+						downloadListener.downloadedFile(S3Connection.this, request.getKey(), request.downloadFile);
+				}
+			});
+		}
+		else if(requestListener != null)
+		{
+			S3Connection.runOnUiThread(new Runnable() {
+				public void run()
+				{
+					if(error != null)
+						requestListener.requestFailed(S3Connection.this, request.getKey(), error);
+					else if(request.body.isFile())
+						requestListener.uploadedFile(S3Connection.this, request.getKey());
 					else
-					{
-						if(S3Connection.this.listener != null)
-							S3Connection.runOnUiThread(new Runnable() { public void run() { S3Connection.this.listener.uploadedFile(S3Connection.this, key); } });
-					}
+						requestListener.uploadedData(S3Connection.this, request.getKey());
 				}
-				catch(Exception e)
+			});
+		}
+		this.requestFinished(request);
+	}
+
+	// Sends an upload, runs on a scheduler thread
+	private void perform(S3Request request)
+	{
+		S3Body body = request.body;
+		S3UploadCache cache = this.uploadCache;
+		File file = body instanceof S3Body.FileBody ? ((S3Body.FileBody)body).file : null;
+		String contentType, md5, error;
+		boolean running = request.begin();
+		long started = System.nanoTime(), finished;
+
+		if(request.metrics != null)
+			request.metrics.uploadStarted(running);
+		// Cancelled while it was waiting in the queue
+		if(!running)
+			return;
+		addTime(request, S3Metrics.TIME_QUEUED, request.created, started);
+
+		try
+		{
+			if(request.contentType != null && request.contentType.length() > 0)
+				contentType = request.contentType;
+			else if(body instanceof S3Body.FileBody)
+				contentType = getMimeType(((S3Body.FileBody)body).file.getName());
+			else if(body instanceof S3Body.FileRegionBody)
+				contentType = getMimeType(((S3Body.FileRegionBody)body).file.getName());
+			else
+				contentType = getMimeType(request.getKey());
+
+			if((request.getOptions() & COMPRESS_GZIP) != 0 && isCompressible(contentType) && !body.startsWithGzipMagic())
+			{
+				// Compressed once here for the length and MD5 of what is sent
+				request.body = body = new S3Body.GzipBody(body, this.gzipLevel, this.gzipBufferSize);
+				this.computeDigest(request, body);
+			}
+			// Files in the cache are not hashed again
+			else if(cache != null && file != null && !body.hasContentMD5() && (md5 = cache.getContentMD5(file)) != null)
+				body.setContentMD5(md5);
+			if(this.isUnchanged(request, cache, file))
+			{
+				request.setSkipped();
+				this.complete(request, null);
+				return;
+			}
+
+			if((request.getOptions() & MULTIPART) != 0 && body instanceof S3Body.FileBody && body.getLength() > this.partSize)
+				error = new S3MultipartUpload(this, request, contentType).run();
+			else
+				error = this.put(request, contentType);
+			if(error == null && cache != null && file != null && !request.isCancelled())
+				this.updateCache(request, cache, file);
+			this.complete(request, error);
+		}
+		catch(Exception e)
+		{
+			// Nothing is reported if the request was aborted by cancel
+			this.complete(request, e.getMessage() != null ? e.getMessage() : ERROR_BADCONNECTION);
+		}
+		finally
+		{
+			finished = System.nanoTime();
+			request.addTime(S3Metrics.TIME_TOTAL, (finished - request.created) / 1000);
+			if(request.metrics != null)
+				request.metrics.uploadFinished(request, (finished - started) / 1000);
+		}
+	}
+
+	// Fetches a download, runs on a scheduler thread
+	private void performDownload(S3Request request)
+	{
+		// Cancelled while it was waiting in the queue
+		if(!request.begin())
+			return;
+		try
+		{
+			this.complete(request, new S3Download(this, request, request.downloadFile).run());
+		}
+		catch(Exception e)
+		{
+			// Nothing is reported if the request was aborted by cancel
+			this.complete(request, e.getMessage() != null ? e.getMessage() : ERROR_BADCONNECTION);
+		}
+	}
+
+	// Sends the whole body in a single PUT, returns the error or null
+	private String put(S3Request request, String contentType) throws Exception
+	{
+		S3Body body = request.body;
+		String md5;
+		HttpPut httpRequest;
+		HttpResponse response;
+
+		md5 = this.getContentMD5(request, body);
+		httpRequest = new HttpPut(this.getUrl(request, null));
+		this.setObjectHeaders(httpRequest, request, contentType);
+		// Note: Content-Length is set automatically by the entity. Adding a Content-Length will cause an exception
+		if(md5 != null)
+			httpRequest.setHeader("Content-MD5", md5);
+		httpRequest.setEntity(new S3RequestEntity(request, body, contentType));
+
+		response = this.execute(request, httpRequest, md5, contentType, null);
+		if(response == null)
+			return null;
+		if(response.getStatusLine().getStatusCode() != 200)
+			return this.getResponseError(request, response);
+
+		// Hand the connection back to the pool for the next request
+		S3ClientPool.release(response);
+		if(response.getFirstHeader("ETag") != null)
+			request.setETag(response.getFirstHeader("ETag").getValue());
+		else if(md5 != null)
+			request.setETag(getETag(md5));
+		return null;
+	}
+
+	// Returns true if the upload can be skipped because S3 already has the same object under the key
+	private boolean isUnchanged(S3Request request, S3UploadCache cache, File file) throws IOException
+	{
+		int options = request.getOptions();
+		String etag = cache != null && file != null ? cache.getETag(file, request.getBucket(), request.getKey()) : null;
+		HttpHead httpRequest;
+		HttpResponse response;
+		Header remoteEtag;
+
+		if((options & CHECK_REMOTE) == 0)
+			return (options & SKIP_UNCHANGED) != 0 && etag != null;
+
+		httpRequest = new HttpHead(this.getUrl(request, null));
+		response = this.execute(request, httpRequest, null, null, null);
+		if(response == null)
+			return false;
+		remoteEtag = response.getFirstHeader("ETag");
+		S3ClientPool.release(response);
+		if(response.getStatusLine().getStatusCode() != 200 || remoteEtag == null)
+			return false;
+
+		// Without a cached ETag, compare with the ETag S3 gives an object uploaded with a single PUT
+		if(etag == null)
+		{
+			this.computeDigest(request, request.body);
+			etag = getETag(request.body.getContentMD5());
+		}
+		if(!etag.equals(remoteEtag.getValue()))
+			return false;
+		request.setETag(etag);
+		return true;
+	}
+
+	private void updateCache(S3Request request, S3UploadCache cache, File file)
+	{
+		try
+		{
+			// A MULTIPART upload does not hash the whole file, and the MD5 of a compressed upload is not the file's
+			if(request.body.hasContentMD5() && !(request.body instanceof S3Body.GzipBody))
+				cache.putContentMD5(file, request.body.getContentMD5());
+			if(request.getETag() != null)
+				cache.putETag(file, request.getBucket(), request.getKey(), request.getETag());
+			cache.flush();
+		} catch(IOException e) { Log.e(TAG, "Could not save the upload cache: " + e.getMessage()); }
+	}
+
+	// The ETag of an object uploaded with a single PUT is the quoted hex MD5
+	private static String getETag(String contentMD5) throws IOException
+	{
+		StringBuilder etag = new StringBuilder(34).append('"');
+		for(byte b : Base64.decode(contentMD5))
+			etag.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		return etag.append('"').toString();
+	}
+
+	/**
+	 * Returns the Content-MD5 to send with body, or null if it should not be sent.
+	 * Signature version 2 needs it, with version 4 it is only sent if it is known without reading the body.
+	 * The MD5 is computed in the same read that checks for the gzip magic number.
+	 */
+	String getContentMD5(S3Request request, S3Body body) throws IOException
+	{
+		if(this.getSignerV4() != null && !body.hasContentMD5())
+			return null;
+		this.computeDigest(request, body);
+		return body.getContentMD5();
+	}
+
+	// Reads body for its MD5 unless it is known, counting the time against request
+	private void computeDigest(S3Request request, S3Body body) throws IOException
+	{
+		long start;
+
+		if(body.hasContentMD5())
+			return;
+		start = System.nanoTime();
+		body.getDigest();
+		addTime(request, S3Metrics.TIME_DIGEST, start, System.nanoTime());
+	}
+
+	// Adds the time from start to end to a phase of request and to its metrics
+	private static void addTime(S3Request request, int time, long start, long end)
+	{
+		long micros = (end - start) / 1000;
+
+		request.addTime(time, micros);
+		if(request.metrics != null)
+			request.metrics.record(time, micros);
+	}
+
+	String getUrl(S3Request request, String subresource)
+	{
+		String region = this.getRegion();
+		String url;
+
+		if(region != null)
+			url = String.format((request.getOptions() & HTTPS) != 0 ? URL_REGION_SECURE : URL_REGION, request.getBucket(), region, request.getKey());
+		else
+			url = String.format((request.getOptions() & HTTPS) != 0 ? URL_SECURE : URL, request.getBucket(), request.getKey());
+		return subresource != null ? url + "?" + subresource : url;
+	}
+
+	// Adds the headers that describe the object being created, from the options and the extra headers
+	void setObjectHeaders(HttpRequestBase httpRequest, S3Request request, String contentType) throws IOException
+	{
+		int options = request.getOptions();
+
+		// Check for the gzip magic number and add the Content-Encoding header
+		if(request.body instanceof S3Body.GzipBody || ((options & DETECT_GZIP) != 0 && request.body.startsWithGzipMagic()))
+			httpRequest.setHeader("Content-Encoding", "gzip");
+		if((options & NO_CACHE) != 0)
+			httpRequest.setHeader("Cache-Control", "no-cache");
+		if((options & PERMANENT_CACHE) != 0)
+			httpRequest.setHeader("Cache-Control", "max-age=315360000");
+		if((options & REDUCED_REDUNDANCY) != 0)
+			httpRequest.setHeader("x-amz-storage-class", "REDUCED_REDUNDANCY");
+		if(contentType != null && contentType.length() > 0)
+			httpRequest.setHeader("Content-Type", contentType);
+		for(Entry<String, String> extraHeader : request.headers.entrySet())
+			httpRequest.addHeader(extraHeader.getKey(), extraHeader.getValue());
+	}
+
+	/**
+	 * Signs and sends an HTTP request that belongs to request, subresource is the query string that has to be signed.
+	 * The request is sent again while the retry policy allows it, re-signed with the same MD5 and content type.
+	 * Returns the last response, or null if request was cancelled before it could be sent.
+	 */
+	HttpResponse execute(S3Request request, HttpRequestBase httpRequest, String md5, String contentType, String subresource) throws IOException
+	{
+		S3RetryPolicy policy = this.retryPolicy;
+		String bucket = request.getBucket();
+		HttpResponse response;
+		Header retryAfter;
+		long delay;
+
+		if(!policy.allowRequest(bucket))
+			throw new IOException(ERROR_CIRCUITOPEN);
+
+		for(int attempt = 1; ; ++attempt)
+		{
+			try
+			{
+				if((response = this.send(request, httpRequest, md5, contentType, subresource)) == null)
+					return null;
+			}
+			catch(IOException e)
+			{
+				// A cancelled request says nothing about the bucket, so it does not count towards opening the circuit
+				if(request.isCancelled())
+					throw e;
+				policy.onFailure(bucket);
+				if(!policy.acquireRetry(bucket, attempt))
+					throw e;
+				response = null;
+			}
+
+			if(response != null)
+			{
+				if(!this.isRetryable(policy, response))
 				{
-					if(!request.isAborted())
-					{
-						S3Connection.this.error = e.getMessage();
-						if(S3Connection.this.listener != null)
-							S3Connection.runOnUiThread(new Runnable() { public void run() { S3Connection.this.listener.requestFailed(S3Connection.this, key, S3Connection.this.error); } });
-					}
+					policy.onSuccess(bucket);
+					return response;
 				}
+				policy.onFailure(bucket);
+				if(!policy.acquireRetry(bucket, attempt))
+					return response;
+				retryAfter = response.getFirstHeader("Retry-After");
+				delay = policy.getDelay(attempt, retryAfter != null ? retryAfter.getValue() : null);
+				S3ClientPool.release(response);
 			}
-		});
-		thread.start();
+			else
+				delay = policy.getDelay(attempt, null);
+
+			request.addRetry();
+			if(request.metrics != null)
+				request.metrics.retried();
+
+			// Waiting on the request wakes up as soon as it is cancelled
+			try
+			{
+				if(request.await(delay))
+					return null;
+			}
+			catch(InterruptedException e)
+			{
+				throw new InterruptedIOException(e.getMessage());
+			}
+		}
+	}
+
+	// Returns true if the response is an error that may not happen again, the S3Error is read from the body and kept for getResponseError
+	private boolean isRetryable(S3RetryPolicy policy, HttpResponse response) throws IOException
+	{
+		if(response.getStatusLine().getStatusCode() < 300)
+			return false;
+		return S3Error.read(response, policy).isRetryable();
+	}
+
+	// Sends httpRequest once, timing each phase and telling the concurrency controller how it went
+	private HttpResponse send(S3Request request, HttpRequestBase httpRequest, String md5, String contentType, String subresource) throws IOException
+	{
+		HttpEntity entity = httpRequest instanceof HttpEntityEnclosingRequest ? ((HttpEntityEnclosingRequest)httpRequest).getEntity() : null;
+		S3RequestEntity requestEntity = entity instanceof S3RequestEntity ? (S3RequestEntity)entity : null;
+		S3ConcurrencyController controller = this.concurrencyController;
+		long start = System.nanoTime(), signed, end, transfer = 0;
+		HttpResponse response;
+		int status;
+
+		this.sign(request, httpRequest, md5, contentType, subresource);
+		signed = System.nanoTime();
+		addTime(request, S3Metrics.TIME_SIGN, start, signed);
+		if(!request.attach(httpRequest))
+			return null;
+		if(requestEntity != null)
+			requestEntity.writeStarted = requestEntity.writeFinished = 0;
+		try
+		{
+			response = this.clientPool.getClient().execute(httpRequest);
+		}
+		catch(IOException e)
+		{
+			// A cancelled request says nothing about the network
+			if(controller != null && !request.isCancelled())
+				controller.record(0, System.nanoTime() - signed, true);
+			throw e;
+		}
+		finally
+		{
+			request.detach(httpRequest);
+		}
+
+		end = System.nanoTime();
+		if(requestEntity != null && requestEntity.writeFinished != 0)
+		{
+			transfer = requestEntity.writeFinished - requestEntity.writeStarted;
+			addTime(request, S3Metrics.TIME_CONNECT, signed, requestEntity.writeStarted);
+			addTime(request, S3Metrics.TIME_TRANSFER, requestEntity.writeStarted, requestEntity.writeFinished);
+			addTime(request, S3Metrics.TIME_FIRST_BYTE, requestEntity.writeFinished, end);
+		}
+		else
+			addTime(request, S3Metrics.TIME_FIRST_BYTE, signed, end);
+
+		if(controller != null)
+		{
+			status = response.getStatusLine().getStatusCode();
+			controller.record(transfer != 0 ? requestEntity.getBodyLength() : 0, end - signed - transfer, status >= 500 || status == 429 || status == 408);
+		}
+		return response;
+	}
+
+	void sign(S3Request request, HttpRequestBase httpRequest, String md5, String contentType, String subresource) throws IOException
+	{
+		S3SignerV4 signerV4 = this.getSignerV4();
+		if(signerV4 != null)
+		{
+			this.signV4(signerV4, request, httpRequest, subresource);
+			return;
+		}
+
+		String date = S3Signer.getDateHeader();
+		String resource = subresource != null ? request.getKey() + "?" + subresource : request.getKey();
+		TreeMap<String, String> amzHeaders = null;
+
+		// x-amz- headers such as the storage class are part of the signature
+		for(Header header : httpRequest.getAllHeaders())
+		{
+			String name = header.getName().toLowerCase(Locale.US);
+			if(!name.startsWith("x-amz-"))
+				continue;
+			if(amzHeaders == null)
+				amzHeaders = new TreeMap<String, String>();
+			if(amzHeaders.containsKey(name))
+				amzHeaders.put(name, amzHeaders.get(name) + "," + header.getValue().trim());
+			else
+				amzHeaders.put(name, header.getValue().trim());
+		}
+
+		httpRequest.setHeader("Date", date);
+		httpRequest.setHeader("Authorization", this.getAuthorizationHeader(httpRequest.getMethod(), md5, contentType, date, amzHeaders, request.getBucket(), resource));
+	}
+
+	// http://docs.aws.amazon.com/AmazonS3/latest/API/sig-v4-authenticating-requests.html
+	private void signV4(S3SignerV4 signerV4, S3Request request, HttpRequestBase httpRequest, String subresource) throws IOException
+	{
+		String amzDate = S3SignerV4.getAmzDate();
+		HttpEntity entity = httpRequest instanceof HttpEntityEnclosingRequest ? ((HttpEntityEnclosingRequest)httpRequest).getEntity() : null;
+		S3RequestEntity streamingEntity = null;
+		HashMap<String, String> headers = new HashMap<String, String>();
+		String payloadHash, host;
+		S3SignerV4.Signature signature;
+		Header encoding;
+
+		if(entity == null)
+			payloadHash = S3SignerV4.EMPTY_SHA256;
+		else if(!(entity instanceof S3RequestEntity))
+			payloadHash = S3SignerV4.sha256Hex(EntityUtils.toByteArray(entity));
+		else if(this.payloadSigning == PAYLOAD_UNSIGNED)
+			payloadHash = S3SignerV4.UNSIGNED_PAYLOAD;
+		else
+		{
+			// The body is signed chunk by chunk as it is written, the encoding goes in front of any gzip encoding
+			streamingEntity = (S3RequestEntity)entity;
+			payloadHash = S3SignerV4.STREAMING_PAYLOAD;
+			encoding = httpRequest.getFirstHeader("Content-Encoding");
+			// A retry is signed again with the encoding already set
+			if(encoding == null)
+				httpRequest.setHeader("Content-Encoding", "aws-chunked");
+			else if(!encoding.getValue().startsWith("aws-chunked"))
+				httpRequest.setHeader("Content-Encoding", "aws-chunked," + encoding.getValue());
+			httpRequest.setHeader("x-amz-decoded-content-length", String.valueOf(streamingEntity.getBodyLength()));
+		}
+		httpRequest.setHeader("x-amz-date", amzDate);
+		httpRequest.setHeader("x-amz-content-sha256", payloadHash);
+
+		// Every header that is set is signed, along with the host the client adds, but not the Authorization of an earlier attempt
+		host = httpRequest.getURI().getHost();
+		if(httpRequest.getURI().getPort() != -1)
+			host += ":" + httpRequest.getURI().getPort();
+		headers.put("host", host);
+		for(Header header : httpRequest.getAllHeaders())
+		{
+			String name = header.getName().toLowerCase(Locale.US);
+			headers.put(name, headers.containsKey(name) ? headers.get(name) + "," + header.getValue() : header.getValue());
+		}
+
+		signature = signerV4.sign(httpRequest.getMethod(), "/" + request.getKey(), subresource, headers, payloadHash, amzDate);
+		httpRequest.setHeader("Authorization", signature.getAuthorization());
+		if(streamingEntity != null)
+			streamingEntity.setChunkSigning(signature, S3SignerV4.DEFAULT_CHUNK_SIZE);
+	}
+
+	// Reads the S3Error out of a failed response, which releases the connection, keeps it in request and returns its message
+	String getResponseError(S3Request request, HttpResponse response) throws IOException
+	{
+		S3Error error = S3Error.read(response, this.retryPolicy);
+
+		request.setS3Error(error);
+		return error.getMessage() != null ? error.getMessage() : ERROR_HTTPERROR;
 	}
 
-	public static void uploadData(byte[] data, String bucket, String key, String contentType, int options, String accessKeyId, String secretAccessKey, RequestListener requestListener)
+	public static S3Request uploadData(byte[] data, String bucket, String key, String contentType, int options, String accessKeyId, String secretAccessKey, RequestListener requestListener)
 	{
 		S3Connection connection = new S3Connection(accessKeyId, secretAccessKey, requestListener);
 		connection.bucket = bucket;
-		connection.uploadData(data, contentType, key, options);
+		return connection.uploadData(data, contentType, key, options);
 	}
 
-	public static void uploadFile(File file, String bucket, String key, int options, String accessKeyId, String secretAccessKey, RequestListener requestListener)
+	public static S3Request uploadFile(File file, String bucket, String key, int options, String accessKeyId, String secretAccessKey, RequestListener requestListener)
 	{
 		S3Connection connection = new S3Connection(accessKeyId, secretAccessKey, requestListener);
 		connection.bucket = bucket;
-		connection.uploadFile(file, key, options);
+		return connection.uploadFile(file, key, options);
 	}
 }
@@ -0,0 +1,229 @@
+package com.symbiotic.support;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The MD5 of an upload body and whether it starts with the gzip magic number, found in a single read of the data.
+ * Files are read through a FileChannel in large blocks into a buffer that is reused by the thread.
+ * The same routine copies a file region to a stream, so the upload itself reads with the same block size.
+ * ByteBuffers, direct or mapped ones included, are digested in place and only go through the thread's buffer to be written.
+ */
+public final class S3Digest
+{
+	public static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue()
+		{
+			return new byte[BUFFER_SIZE];
+		}
+	};
+
+	private final byte []md5;
+	private final long length;
+	private final boolean gzip;
+
+	public S3Digest(byte []md5, long length, boolean gzip)
+	{
+		this.md5 = md5;
+		this.length = length;
+		this.gzip = gzip;
+	}
+
+	public byte[] getMD5()
+	{
+		return this.md5.clone();
+	}
+
+	/**
+	 * Returns the MD5 base64 encoded, as sent in the Content-MD5 header.
+	 */
+	public String getContentMD5()
+	{
+		return Base64.encode(this.md5);
+	}
+
+	public long getLength()
+	{
+		return this.length;
+	}
+
+	public boolean isGzip()
+	{
+		return this.gzip;
+	}
+
+	public static S3Digest compute(byte []data, int offset, int length)
+	{
+		MessageDigest md = newMD5();
+		md.update(data, offset, length);
+		return new S3Digest(md.digest(), length, isGzip(data, offset, length));
+	}
+
+	/**
+	 * Digests everything read from in, reading bufferSize bytes at a time. The stream is not closed.
+	 */
+	public static S3Digest compute(InputStream in, int bufferSize) throws IOException
+	{
+		MessageDigest md = newMD5();
+		byte []buffer = bufferSize == BUFFER_SIZE ? buffers.get() : new byte[bufferSize];
+		long length = 0;
+		boolean gzip = false;
+		int read;
+
+		while((read = in.read(buffer)) >= 0)
+		{
+			if(length == 0 && read > 0)
+				gzip = isGzip(buffer, 0, read);
+			md.update(buffer, 0, read);
+			length += read;
+		}
+		return new S3Digest(md.digest(), length, gzip);
+	}
+
+	public static S3Digest compute(File file) throws IOException
+	{
+		return compute(file, 0, file.length());
+	}
+
+	/**
+	 * Digests length bytes of file starting at offset.
+	 */
+	public static S3Digest compute(File file, long offset, long length) throws IOException
+	{
+		FileInputStream in = new FileInputStream(file);
+		try
+		{
+			return compute(in.getChannel(), offset, length);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	public static S3Digest compute(FileChannel channel, long offset, long length) throws IOException
+	{
+		MessageDigest md = newMD5();
+		byte []buffer = buffers.get();
+		ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+		long position = offset, end = offset + length;
+		boolean gzip = false;
+		int read;
+
+		while(position < end)
+		{
+			byteBuffer.clear();
+			if(end - position < buffer.length)
+				byteBuffer.limit((int)(end - position));
+			if((read = channel.read(byteBuffer, position)) < 0)
+				throw new IOException("File is shorter than expected.");
+			// The magic number is in the first block, so sniffing it costs no extra read
+			if(position == offset)
+				gzip = isGzip(buffer, 0, read);
+			md.update(buffer, 0, read);
+			position += read;
+		}
+		return new S3Digest(md.digest(), length, gzip);
+	}
+
+	/**
+	 * Digests the remaining bytes of buffer without changing its position.
+	 */
+	public static S3Digest compute(ByteBuffer buffer)
+	{
+		MessageDigest md = newMD5();
+		ByteBuffer view = buffer.duplicate();
+		int length = view.remaining(), position = view.position();
+		boolean gzip = length >= 2 && view.get(position) == (byte)0x1f && view.get(position + 1) == (byte)0x8b;
+
+		md.update(view);
+		return new S3Digest(md.digest(), length, gzip);
+	}
+
+	/**
+	 * Writes the remaining bytes of buffer to out without changing its position, in blocks of BUFFER_SIZE.
+	 * A buffer backed by an array is written from the array, others are copied a block at a time into the thread's buffer.
+	 */
+	public static void copy(ByteBuffer buffer, OutputStream out) throws IOException
+	{
+		ByteBuffer view = buffer.duplicate();
+		byte []block;
+		int count;
+
+		if(view.hasArray())
+		{
+			for(int off = view.arrayOffset() + view.position(), end = view.arrayOffset() + view.limit(); off < end; off += count)
+			{
+				count = Math.min(BUFFER_SIZE, end - off);
+				out.write(view.array(), off, count);
+			}
+			return;
+		}
+
+		block = buffers.get();
+		while(view.hasRemaining())
+		{
+			count = Math.min(block.length, view.remaining());
+			view.get(block, 0, count);
+			out.write(block, 0, count);
+		}
+	}
+
+	/**
+	 * Writes length bytes of file starting at offset to out, with the same reads as compute.
+	 */
+	public static void copy(File file, long offset, long length, OutputStream out) throws IOException
+	{
+		FileInputStream in = new FileInputStream(file);
+		try
+		{
+			FileChannel channel = in.getChannel();
+			byte []buffer = buffers.get();
+			ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+			long position = offset, end = offset + length;
+			int read;
+
+			while(position < end)
+			{
+				byteBuffer.clear();
+				if(end - position < buffer.length)
+					byteBuffer.limit((int)(end - position));
+				if((read = channel.read(byteBuffer, position)) < 0)
+					throw new IOException("File is shorter than expected.");
+				out.write(buffer, 0, read);
+				position += read;
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	private static boolean isGzip(byte []data, int offset, int length)
+	{
+		return length >= 2 && data[offset] == (byte)0x1f && data[offset + 1] == (byte)0x8b;
+	}
+
+	private static MessageDigest newMD5()
+	{
+		try
+		{
+			return MessageDigest.getInstance("MD5");
+		}
+		catch(NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,479 @@
+package com.symbiotic.support;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpRequestBase;
+
+/**
+ * Downloads an object to a file. The first part is requested with a Range header, which also gives the size of the object.
+ * An object no bigger than a part is done with that one response, streamed straight into the file. A bigger one is preallocated
+ * and the other parts are fetched at once, each written where it belongs with positional FileChannel writes.
+ * Every part asks for the ETag of the first, so the object cannot change in the middle, and the file is checked against the ETag
+ * when it is an MD5: of the whole object, or of the MD5s of the parts when it was uploaded with the same part size.
+ * A part whose connection breaks is requested again from where it stopped.
+ */
+final class S3Download
+{
+	private static final String ERROR_CHANGED = "Object changed while it was being downloaded.";
+	private static final String ERROR_SHORT = "The download ended before the whole object was received.";
+	private static final String ERROR_CORRUPT = "The downloaded file does not match its ETag.";
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	// Used for the end of a range when the size of the object is not known
+	private static final long UNKNOWN = Long.MAX_VALUE;
+
+	private final S3Connection connection;
+	private final S3Request request;
+	private final File file;
+	private final String url;
+	private final long partSize;
+
+	private RandomAccessFile out;
+	private FileChannel channel;
+	private long length = UNKNOWN;
+	private int partCount;
+	private String etag;
+	private boolean encrypted;
+	// The MD5 of every part, part 0 is the whole object when it is fetched in one response
+	private byte [][]partDigests;
+	private final AtomicInteger nextPart = new AtomicInteger(1);
+	private volatile String error;
+
+	// The bytes still to be written from position up to end, as they are read
+	private static final class Range
+	{
+		long position;
+		long end;
+		final MessageDigest md;
+
+		Range(long position, long end, MessageDigest md)
+		{
+			this.position = position;
+			this.end = end;
+			this.md = md;
+		}
+	}
+
+	S3Download(S3Connection connection, S3Request request, File file)
+	{
+		this.connection = connection;
+		this.request = request;
+		this.file = file;
+		this.url = connection.getUrl(request, null);
+		this.partSize = connection.getPartSize();
+	}
+
+	/**
+	 * Runs the download on the calling thread, returns the error or null. The file is deleted if the download does not succeed.
+	 */
+	String run() throws IOException
+	{
+		String result = null;
+
+		this.out = new RandomAccessFile(this.file, "rw");
+		this.channel = this.out.getChannel();
+		try
+		{
+			result = this.fetchFirst();
+			if(result == null && this.partCount > 1)
+				result = this.fetchParts();
+			if(result == null && !this.request.isCancelled())
+				result = this.verify();
+			if(result == null)
+				this.request.setETag(this.etag);
+		}
+		finally
+		{
+			this.out.close();
+			if(result != null || this.request.isCancelled())
+				this.file.delete();
+		}
+		return result;
+	}
+
+	// Gets the first part, and the whole object if it fits in one
+	private String fetchFirst() throws IOException
+	{
+		HttpGet httpRequest = new HttpGet(this.url);
+		HttpResponse response;
+		Header header;
+		Range range;
+		int status;
+
+		httpRequest.setHeader("Range", "bytes=0-" + (this.partSize - 1));
+		response = this.connection.execute(this.request, httpRequest, null, null, null);
+		if(response == null)
+			return null;
+
+		status = response.getStatusLine().getStatusCode();
+		// S3 does not satisfy any range of an empty object
+		if(status == 416)
+		{
+			S3ClientPool.release(response);
+			return this.fetchWhole();
+		}
+		if(status != 200 && status != 206)
+			return this.connection.getResponseError(this.request, response);
+
+		if(status == 206 && (header = response.getFirstHeader("Content-Range")) != null)
+			this.length = getTotalLength(header.getValue());
+		else if(response.getEntity() != null && response.getEntity().getContentLength() >= 0)
+			this.length = response.getEntity().getContentLength();
+		// A server that ignores the Range header sends it all
+		this.start(response, status == 200);
+
+		range = new Range(0, status == 200 || this.length == UNKNOWN ? this.length : Math.min(this.partSize, this.length), newMD5());
+		return this.fetch(range, 0, httpRequest, response);
+	}
+
+	// Gets an object that has no ranges in one response
+	private String fetchWhole() throws IOException
+	{
+		HttpGet httpRequest = new HttpGet(this.url);
+		HttpResponse response = this.connection.execute(this.request, httpRequest, null, null, null);
+
+		if(response == null)
+			return null;
+		if(response.getStatusLine().getStatusCode() != 200)
+			return this.connection.getResponseError(this.request, response);
+		if(response.getEntity() != null && response.getEntity().getContentLength() >= 0)
+			this.length = response.getEntity().getContentLength();
+		this.start(response, true);
+		return this.fetch(new Range(0, this.length, newMD5()), 0, httpRequest, response);
+	}
+
+	// Sizes the file from the first response and remembers the ETag the other parts must match
+	private void start(HttpResponse response, boolean whole) throws IOException
+	{
+		Header etag = response.getFirstHeader("ETag");
+
+		this.etag = etag != null ? etag.getValue() : null;
+		// The ETag of an encrypted object is not the MD5 of what is downloaded
+		this.encrypted = response.getFirstHeader("x-amz-server-side-encryption-customer-algorithm") != null ||
+			(response.getFirstHeader("x-amz-server-side-encryption") != null && response.getFirstHeader("x-amz-server-side-encryption").getValue().startsWith("aws:kms"));
+		this.partCount = whole || this.length == UNKNOWN ? 1 : (int)Math.max((this.length + this.partSize - 1) / this.partSize, 1);
+		this.partDigests = new byte[this.partCount][];
+		this.request.setBytesTotal(this.length == UNKNOWN ? -1 : this.length);
+
+		// Preallocated so the parts can be written in any order, and truncated if the file was bigger
+		this.channel.truncate(0);
+		if(this.partCount > 1)
+			this.out.setLength(this.length);
+	}
+
+	// Gets the other parts, using up to partConcurrency threads including this one
+	private String fetchParts() throws IOException
+	{
+		Runnable fetcher = new Runnable() {
+			public void run()
+			{
+				S3Download.this.fetchPartsLoop();
+			}
+		};
+		int threads = Math.min(this.connection.getPartConcurrency(), this.partCount - 1);
+		Future<?> []futures = new Future<?>[Math.max(threads - 1, 0)];
+
+		for(int i = 0; i < futures.length; ++i)
+			futures[i] = S3MultipartUpload.getPartExecutor().submit(fetcher);
+		fetcher.run();
+		for(int i = 0; i < futures.length; ++i)
+		{
+			try
+			{
+				futures[i].get();
+			}
+			catch(Exception e)
+			{
+				if(this.error == null)
+					this.error = e.getMessage();
+			}
+		}
+		return this.error;
+	}
+
+	private void fetchPartsLoop()
+	{
+		int index;
+
+		while(this.error == null && !this.request.isCancelled() && (index = this.nextPart.getAndIncrement()) < this.partCount)
+		{
+			long start = index * this.partSize;
+			String result;
+
+			try
+			{
+				result = this.fetch(new Range(start, Math.min(start + this.partSize, this.length), newMD5()), index, null, null);
+			}
+			catch(Exception e)
+			{
+				result = e.getMessage() != null ? e.getMessage() : S3Connection.ERROR_BADCONNECTION;
+			}
+			if(result != null && this.error == null)
+				this.error = result;
+		}
+	}
+
+	/**
+	 * Writes range from response, or from a new request if response is null, and requests what is left of it
+	 * while the connection's S3RetryPolicy allows if the connection breaks. Returns the error or null.
+	 */
+	private String fetch(Range range, int index, HttpRequestBase httpRequest, HttpResponse response) throws IOException
+	{
+		S3RetryPolicy policy = this.connection.getRetryPolicy();
+		int status;
+
+		for(int attempt = 1; ; ++attempt)
+		{
+			if(response == null)
+			{
+				httpRequest = new HttpGet(this.url);
+				httpRequest.setHeader("Range", "bytes=" + range.position + "-" + (range.end == UNKNOWN ? "" : String.valueOf(range.end - 1)));
+				if(this.etag != null)
+					httpRequest.setHeader("If-Match", this.etag);
+				if((response = this.connection.execute(this.request, httpRequest, null, null, null)) == null)
+					return null;
+				status = response.getStatusLine().getStatusCode();
+				if(status == 412)
+				{
+					S3ClientPool.release(response);
+					return ERROR_CHANGED;
+				}
+				if(status != 206)
+					return this.connection.getResponseError(this.request, response);
+			}
+
+			try
+			{
+				this.write(httpRequest, response, range);
+				if(range.md != null)
+					this.setPartDigest(index, range.md.digest());
+				return null;
+			}
+			catch(IOException e)
+			{
+				if(this.request.isCancelled())
+					return null;
+				if(!policy.acquireRetry(this.request.getBucket(), attempt))
+					throw e;
+			}
+
+			this.request.addRetry();
+			try
+			{
+				if(this.request.await(policy.getDelay(attempt, null)))
+					return null;
+			}
+			catch(InterruptedException e)
+			{
+				throw new InterruptedIOException(e.getMessage());
+			}
+			response = null;
+		}
+	}
+
+	// Reads the body of response into the file at range.position, moving it along so a retry can carry on from there
+	private void write(HttpRequestBase httpRequest, HttpResponse response, Range range) throws IOException
+	{
+		HttpEntity entity = response.getEntity();
+		byte []buffer = new byte[BUFFER_SIZE];
+		ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+		boolean done = false;
+		InputStream in;
+		int read;
+
+		if(entity == null)
+		{
+			if(range.end == UNKNOWN)
+				this.setLength(range);
+			else if(range.position < range.end)
+				throw new IOException(ERROR_SHORT);
+			return;
+		}
+		// Attached while the body is read, so cancel aborts it
+		if(!this.request.attach(httpRequest))
+		{
+			httpRequest.abort();
+			return;
+		}
+		try
+		{
+			in = entity.getContent();
+			while(range.position < range.end && (read = in.read(buffer, 0, (int)Math.min(buffer.length, range.end - range.position))) >= 0)
+			{
+				long position = range.position;
+
+				byteBuffer.clear();
+				byteBuffer.limit(read);
+				while(byteBuffer.hasRemaining())
+					position += this.channel.write(byteBuffer, position);
+				if(range.md != null)
+					range.md.update(buffer, 0, read);
+				range.position += read;
+				this.request.addBytesSent(read);
+			}
+			// Read to the end of an object of unknown size
+			if(range.end == UNKNOWN)
+				this.setLength(range);
+			else if(range.position < range.end)
+				throw new IOException(ERROR_SHORT);
+			// Closed at the end of the body, which hands the connection back to the pool
+			in.close();
+			done = true;
+		}
+		finally
+		{
+			this.request.detach(httpRequest);
+			if(!done)
+				httpRequest.abort();
+		}
+	}
+
+	// Compares the file with the ETag when it is an MD5, returns the error or null
+	private String verify() throws IOException
+	{
+		String etag = this.etag;
+		byte []expected;
+		int dash, parts;
+		MessageDigest md;
+
+		if(etag == null || this.encrypted)
+			return null;
+		if(etag.startsWith("\"") && etag.endsWith("\"") && etag.length() >= 2)
+			etag = etag.substring(1, etag.length() - 1);
+		dash = etag.indexOf('-');
+
+		// A single PUT has the MD5 of the object
+		if(dash < 0)
+		{
+			if((expected = parseHex(etag)) == null)
+				return null;
+			if(this.partCount == 1)
+				return Arrays.equals(expected, this.getPartDigest(0)) ? null : ERROR_CORRUPT;
+			// Parts arrive in any order, so the whole file is read again
+			return Arrays.equals(expected, S3Digest.compute(this.channel, 0, this.length).getMD5()) ? null : ERROR_CORRUPT;
+		}
+
+		// A multipart upload has the MD5 of the MD5s of its parts, which can only be checked if they were the same size as ours
+		if((expected = parseHex(etag.substring(0, dash))) == null)
+			return null;
+		try
+		{
+			parts = Integer.parseInt(etag.substring(dash + 1));
+		}
+		catch(NumberFormatException e)
+		{
+			return null;
+		}
+		if(parts != this.partCount)
+			return null;
+		md = newMD5();
+		for(int i = 0; i < this.partCount; ++i)
+			md.update(this.getPartDigest(i));
+		if(Arrays.equals(expected, md.digest()))
+			return null;
+		// The same number of parts of another size does not mean the file is wrong
+		return this.getFirstPartLength() == Math.min(this.partSize, this.length) ? ERROR_CORRUPT : null;
+	}
+
+	// Asks S3 for the size of the first part the object was uploaded with, or -1
+	private long getFirstPartLength() throws IOException
+	{
+		HttpHead httpRequest = new HttpHead(this.url + "?partNumber=1");
+		HttpResponse response = this.connection.execute(this.request, httpRequest, null, null, "partNumber=1");
+		Header length;
+
+		if(response == null)
+			return -1;
+		length = response.getFirstHeader("Content-Length");
+		S3ClientPool.release(response);
+		if(response.getStatusLine().getStatusCode() != 206 && response.getStatusLine().getStatusCode() != 200 || length == null)
+			return -1;
+		try
+		{
+			return Long.parseLong(length.getValue().trim());
+		}
+		catch(NumberFormatException e)
+		{
+			return -1;
+		}
+	}
+
+	// Only an object fetched in one response can have an unknown size
+	private void setLength(Range range)
+	{
+		range.end = this.length = range.position;
+		this.request.setBytesTotal(this.length);
+	}
+
+	private synchronized byte[] getPartDigest(int index)
+	{
+		return this.partDigests[index];
+	}
+
+	private synchronized void setPartDigest(int index, byte []digest)
+	{
+		this.partDigests[index] = digest;
+	}
+
+	// Content-Range: bytes 0-8388607/52428800
+	private static long getTotalLength(String contentRange) throws IOException
+	{
+		int slash = contentRange.lastIndexOf('/');
+
+		if(slash < 0 || contentRange.endsWith("*"))
+			return UNKNOWN;
+		try
+		{
+			return Long.parseLong(contentRange.substring(slash + 1).trim());
+		}
+		catch(NumberFormatException e)
+		{
+			throw new IOException(S3Connection.ERROR_HTTPERROR);
+		}
+	}
+
+	private static byte[] parseHex(String hex)
+	{
+		byte []bytes;
+
+		if(hex.length() != 32)
+			return null;
+		bytes = new byte[16];
+		for(int i = 0; i < 16; ++i)
+		{
+			int high = Character.digit(hex.charAt(i * 2), 16), low = Character.digit(hex.charAt(i * 2 + 1), 16);
+			if(high < 0 || low < 0)
+				return null;
+			bytes[i] = (byte)((high << 4) | low);
+		}
+		return bytes;
+	}
+
+	private static MessageDigest newMD5()
+	{
+		try
+		{
+			return MessageDigest.getInstance("MD5");
+		}
+		catch(NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+}
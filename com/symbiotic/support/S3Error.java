@@ -0,0 +1,262 @@
+package com.symbiotic.support;
+
+import android.util.Xml;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * An error response from S3: the HTTP status, and the code, message and request ID from the XML body when it has one.
+ * http://docs.aws.amazon.com/AmazonS3/latest/API/ErrorResponses.html
+ */
+public final class S3Error
+{
+	// No more than this much of an error body is parsed
+	public static final int MAX_BODY_SIZE = 16 * 1024;
+	// Up to this much is read after the error to keep the connection, a longer body closes it instead
+	private static final int DRAIN_LIMIT = 4 * 1024;
+
+	private static final int FIELD_CODE = 0;
+	private static final int FIELD_MESSAGE = 1;
+	private static final int FIELD_REQUESTID = 2;
+	private static final int FIELD_HOSTID = 3;
+	private static final String []FIELDS = { "Code", "Message", "RequestId", "HostId" };
+
+	private final int status;
+	private final String code;
+	private final String message;
+	private final String requestId;
+	private final String hostId;
+	private final boolean retryable;
+
+	S3Error(int status, String code, String message, String requestId, String hostId, boolean retryable)
+	{
+		this.status = status;
+		this.code = code;
+		this.message = message;
+		this.requestId = requestId;
+		this.hostId = hostId;
+		this.retryable = retryable;
+	}
+
+	public int getStatus()
+	{
+		return this.status;
+	}
+
+	/**
+	 * Returns the S3 error code, for example NoSuchKey or SlowDown, or null if the response had none.
+	 */
+	public String getCode()
+	{
+		return this.code;
+	}
+
+	public String getMessage()
+	{
+		return this.message;
+	}
+
+	/**
+	 * Returns the request ID to give AWS support, from the body or the x-amz-request-id header.
+	 */
+	public String getRequestId()
+	{
+		return this.requestId;
+	}
+
+	public String getHostId()
+	{
+		return this.hostId;
+	}
+
+	/**
+	 * Returns true if the retry policy of the connection would send the request again for this error.
+	 */
+	public boolean isRetryable()
+	{
+		return this.retryable;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("%d %s: %s (request %s)", this.status, this.code, this.message, this.requestId);
+	}
+
+	// Stands in for a body that has been parsed, so the error is only read once and releasing the response does nothing
+	private static final class ParsedEntity extends AbstractHttpEntity
+	{
+		final S3Error error;
+
+		ParsedEntity(S3Error error)
+		{
+			this.error = error;
+		}
+
+		public boolean isRepeatable()
+		{
+			return true;
+		}
+
+		public long getContentLength()
+		{
+			return 0;
+		}
+
+		public InputStream getContent()
+		{
+			return new InputStream() {
+				@Override
+				public int read()
+				{
+					return -1;
+				}
+			};
+		}
+
+		public void writeTo(OutputStream out) {}
+
+		public boolean isStreaming()
+		{
+			return false;
+		}
+	}
+
+	// Ends the body after MAX_BODY_SIZE bytes, which the parser takes as a cut off document
+	private static final class LimitedInputStream extends FilterInputStream
+	{
+		private int remaining = MAX_BODY_SIZE;
+
+		LimitedInputStream(InputStream in)
+		{
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			int b;
+
+			if(this.remaining <= 0 || (b = this.in.read()) < 0)
+				return -1;
+			this.remaining--;
+			return b;
+		}
+
+		@Override
+		public int read(byte []b, int off, int len) throws IOException
+		{
+			int read;
+
+			if(this.remaining <= 0)
+				return -1;
+			if((read = this.in.read(b, off, Math.min(len, this.remaining))) > 0)
+				this.remaining -= read;
+			return read;
+		}
+
+		@Override
+		public void close() {}
+	}
+
+	/**
+	 * Reads the error out of response and hands the connection back to the pool, or closes it if the body is too long to be worth reading.
+	 * Reading the same response again returns the same error.
+	 */
+	static S3Error read(HttpResponse response, S3RetryPolicy policy) throws IOException
+	{
+		HttpEntity entity = response.getEntity();
+		int status = response.getStatusLine().getStatusCode();
+		String []values = new String[FIELDS.length];
+		Header requestId;
+		S3Error error;
+
+		if(entity instanceof ParsedEntity)
+			return ((ParsedEntity)entity).error;
+		if(entity != null)
+		{
+			InputStream in = entity.getContent();
+			try
+			{
+				parse(new LimitedInputStream(in), FIELDS, values);
+			}
+			catch(XmlPullParserException e)
+			{
+				// Not XML, or cut off by the size limit, whatever was parsed before is kept
+			}
+			finally
+			{
+				release(entity, in);
+			}
+		}
+
+		if(values[FIELD_REQUESTID] == null && (requestId = response.getFirstHeader("x-amz-request-id")) != null)
+			values[FIELD_REQUESTID] = requestId.getValue();
+		error = new S3Error(status, values[FIELD_CODE], values[FIELD_MESSAGE], values[FIELD_REQUESTID], values[FIELD_HOSTID],
+			policy.isRetryable(status, values[FIELD_CODE]));
+		response.setEntity(new ParsedEntity(error));
+		return error;
+	}
+
+	/**
+	 * Reads the text of the children of the root element named in names into values, stopping at its end tag.
+	 * Entities are decoded by the parser, so an ETag comes out with its quotes. Also reads the results of multipart requests.
+	 */
+	static void parse(InputStream in, String []names, String []values) throws IOException, XmlPullParserException
+	{
+		XmlPullParser parser = Xml.newPullParser();
+
+		parser.setInput(in, null);
+		for(int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT; event = parser.next())
+		{
+			if(event == XmlPullParser.START_TAG && parser.getDepth() == 2)
+			{
+				for(int i = 0; i < names.length; ++i)
+				{
+					if(names[i].equals(parser.getName()))
+					{
+						values[i] = parser.nextText();
+						break;
+					}
+				}
+			}
+			else if(event == XmlPullParser.END_TAG && parser.getDepth() == 1)
+				return;
+		}
+	}
+
+	// Reads a short remainder so the connection can be used again, a long one is not worth it and the connection is closed
+	private static void release(HttpEntity entity, InputStream in) throws IOException
+	{
+		byte []buffer = new byte[1024];
+		int drained = 0, read = 0;
+
+		try
+		{
+			while(drained <= DRAIN_LIMIT && (read = in.read(buffer)) >= 0)
+				drained += read;
+		}
+		catch(IOException e)
+		{
+			read = 0;
+		}
+
+		if(read < 0)
+			in.close();
+		else if(entity instanceof ConnectionReleaseTrigger)
+			((ConnectionReleaseTrigger)entity).abortConnection();
+		else
+			in.close();
+	}
+}
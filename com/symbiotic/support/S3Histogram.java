@@ -0,0 +1,117 @@
+package com.symbiotic.support;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of positive values in the style of HdrHistogram: buckets are powers of two split into 32 linear sub-buckets,
+ * so every value is kept to within about 3% whatever its size, in a fixed amount of memory.
+ * Recording is lock free and can be done from any thread.
+ */
+public final class S3Histogram
+{
+	private static final int SUB_BUCKET_BITS = 6;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records value, negative values are recorded as 0.
+	 */
+	public void record(long value)
+	{
+		long current;
+
+		if(value < 0)
+			value = 0;
+		this.counts.incrementAndGet(getIndex(value));
+		this.count.incrementAndGet();
+		this.total.addAndGet(value);
+		while(value > (current = this.max.get()) && !this.max.compareAndSet(current, value));
+	}
+
+	public long getCount()
+	{
+		return this.count.get();
+	}
+
+	public long getTotal()
+	{
+		return this.total.get();
+	}
+
+	public long getMax()
+	{
+		return this.max.get();
+	}
+
+	public double getMean()
+	{
+		long count = this.count.get();
+		return count > 0 ? (double)this.total.get() / count : 0;
+	}
+
+	/**
+	 * Returns the value that percentile percent of the recorded values are at or below, for example 99.9.
+	 * The value is the highest one that falls in the same bucket, so it is never less than the true percentile.
+	 */
+	public long getPercentile(double percentile)
+	{
+		long count = this.count.get(), target, seen = 0;
+
+		if(count == 0)
+			return 0;
+		target = Math.max((long)Math.ceil(count * Math.min(percentile, 100) / 100), 1);
+		for(int i = 0; i < BUCKETS; ++i)
+		{
+			if((seen += this.counts.get(i)) >= target)
+				return Math.min(getHighestValue(i), this.max.get());
+		}
+		return this.max.get();
+	}
+
+	/**
+	 * Clears the histogram. Values recorded at the same time may be lost.
+	 */
+	public void reset()
+	{
+		for(int i = 0; i < BUCKETS; ++i)
+			this.counts.set(i, 0);
+		this.count.set(0);
+		this.total.set(0);
+		this.max.set(0);
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("count=%d mean=%.1f p50=%d p90=%d p99=%d p99.9=%d max=%d", this.getCount(), this.getMean(),
+			this.getPercentile(50), this.getPercentile(90), this.getPercentile(99), this.getPercentile(99.9), this.getMax());
+	}
+
+	// Values below SUB_BUCKETS have a bucket each, above that every power of two has HALF_SUB_BUCKETS buckets
+	private static int getIndex(long value)
+	{
+		int shift;
+
+		if(value < SUB_BUCKETS)
+			return (int)value;
+		shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return shift * HALF_SUB_BUCKETS + (int)(value >>> shift);
+	}
+
+	private static long getHighestValue(int index)
+	{
+		int shift;
+
+		if(index < SUB_BUCKETS)
+			return index;
+		shift = index / HALF_SUB_BUCKETS - 1;
+		return ((long)(index % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS) << shift) + (1L << shift) - 1;
+	}
+}
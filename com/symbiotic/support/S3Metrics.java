@@ -0,0 +1,182 @@
+package com.symbiotic.support;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects timings and counts from the uploads of every S3Connection it is set on, see S3Connection.setMetrics.
+ * Times are in microseconds. Each phase has an S3Histogram with one sample per HTTP request, so a retried request or a
+ * MULTIPART upload adds several, while TIME_QUEUED, TIME_TOTAL and the throughput have one sample per upload.
+ * Listeners are told about every upload when it ends, with its own timings in S3Request.getTime.
+ */
+public class S3Metrics
+{
+	// Waiting in the S3UploadScheduler queue
+	public static final int TIME_QUEUED = 0;
+	// Reading the body to compute the MD5, including compressing it for COMPRESS_GZIP
+	public static final int TIME_DIGEST = 1;
+	public static final int TIME_SIGN = 2;
+	// Getting a connection from the pool, connecting and sending the headers, until the body starts
+	public static final int TIME_CONNECT = 3;
+	// Sending the body
+	public static final int TIME_TRANSFER = 4;
+	// From the end of the body to the response, or from signing for requests without a body
+	public static final int TIME_FIRST_BYTE = 5;
+	// From starting the upload until it finished
+	public static final int TIME_TOTAL = 6;
+	static final int TIME_COUNT = 7;
+
+	public interface Listener
+	{
+		/**
+		 * Called on the thread that ran the upload once it has succeeded, failed or been cancelled.
+		 */
+		void uploadFinished(S3Metrics metrics, S3Request request);
+	}
+
+	private final S3Histogram []histograms = new S3Histogram[TIME_COUNT];
+	private final S3Histogram throughput = new S3Histogram();
+	private final AtomicLong uploads = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong bytesSent = new AtomicLong();
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicInteger running = new AtomicInteger();
+	private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	public S3Metrics()
+	{
+		for(int i = 0; i < TIME_COUNT; ++i)
+			this.histograms[i] = new S3Histogram();
+	}
+
+	/**
+	 * Returns the histogram of one of the TIME_ phases.
+	 */
+	public S3Histogram getHistogram(int time)
+	{
+		return this.histograms[time];
+	}
+
+	/**
+	 * Returns the histogram of the bytes per second of every upload that sent anything, from when it started running.
+	 */
+	public S3Histogram getThroughput()
+	{
+		return this.throughput;
+	}
+
+	public long getUploadCount()
+	{
+		return this.uploads.get();
+	}
+
+	public long getFailureCount()
+	{
+		return this.failures.get();
+	}
+
+	public long getRetryCount()
+	{
+		return this.retries.get();
+	}
+
+	public long getBytesSent()
+	{
+		return this.bytesSent.get();
+	}
+
+	/**
+	 * Returns the number of uploads waiting in the scheduler queue.
+	 */
+	public int getQueuedCount()
+	{
+		return this.queued.get();
+	}
+
+	/**
+	 * Returns the number of uploads being sent.
+	 */
+	public int getRunningCount()
+	{
+		return this.running.get();
+	}
+
+	public void addListener(Listener listener)
+	{
+		this.listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener)
+	{
+		this.listeners.remove(listener);
+	}
+
+	/**
+	 * Clears the histograms and counts, but not the number of uploads queued and running.
+	 */
+	public void reset()
+	{
+		for(S3Histogram histogram : this.histograms)
+			histogram.reset();
+		this.throughput.reset();
+		this.uploads.set(0);
+		this.failures.set(0);
+		this.retries.set(0);
+		this.bytesSent.set(0);
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder builder = new StringBuilder(512);
+		String []names = { "queued", "digest", "sign", "connect", "transfer", "first byte", "total" };
+
+		builder.append(String.format("uploads=%d failures=%d retries=%d bytes=%d queued=%d running=%d\n", this.getUploadCount(),
+			this.getFailureCount(), this.getRetryCount(), this.getBytesSent(), this.getQueuedCount(), this.getRunningCount()));
+		for(int i = 0; i < TIME_COUNT; ++i)
+			builder.append(names[i]).append(": ").append(this.histograms[i]).append('\n');
+		return builder.append("bytes/s: ").append(this.throughput).toString();
+	}
+
+	void uploadQueued()
+	{
+		this.queued.incrementAndGet();
+	}
+
+	// Called when a queued upload is taken off the queue, running says if it is going to be sent
+	void uploadStarted(boolean running)
+	{
+		this.queued.decrementAndGet();
+		if(running)
+			this.running.incrementAndGet();
+	}
+
+	void record(int time, long micros)
+	{
+		this.histograms[time].record(micros);
+	}
+
+	void retried()
+	{
+		this.retries.incrementAndGet();
+	}
+
+	// runningMicros is how long the upload ran after it was taken off the queue
+	void uploadFinished(S3Request request, long runningMicros)
+	{
+		long bytes = request.getBytesSent();
+
+		this.running.decrementAndGet();
+		this.uploads.incrementAndGet();
+		if(request.getStatus() == S3Request.STATUS_FAILED)
+			this.failures.incrementAndGet();
+		this.bytesSent.addAndGet(bytes);
+		this.histograms[TIME_TOTAL].record(request.getTime(TIME_TOTAL));
+		if(bytes > 0 && runningMicros > 0)
+			this.throughput.record(bytes * 1000000 / runningMicros);
+		for(Listener listener : this.listeners)
+			listener.uploadFinished(this, request);
+	}
+}
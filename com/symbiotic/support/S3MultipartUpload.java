@@ -0,0 +1,454 @@
+package com.symbiotic.support;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.ByteArrayEntity;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * Sends a file to S3 as a multipart upload: initiate, upload every part, then complete.
+ * Several parts are sent at once, each retried on its own by the connection's S3RetryPolicy.
+ * With a resume directory the upload ID and the ETags of the finished parts are saved after every part,
+ * so uploading the same file again only sends the parts that are missing.
+ * http://docs.aws.amazon.com/AmazonS3/latest/dev/mpuoverview.html
+ */
+final class S3MultipartUpload
+{
+	private static final String STATE_SUFFIX = ".upload";
+
+	private static final String ERROR_NOUPLOADID = "Could not start the multipart upload.";
+
+	private static final String []INITIATE_FIELDS = { "UploadId" };
+	// An Error body has Code and Message in place of ETag
+	private static final String []COMPLETE_FIELDS = { "ETag", "Code", "Message" };
+	private static final String ERROR_CHANGED = "File changed while it was being uploaded.";
+
+	private static ExecutorService partExecutor;
+
+	private final S3Connection connection;
+	private final S3Request request;
+	private final File file;
+	private final long length;
+	private final long modified;
+	private final String contentType;
+	private final long partSize;
+	private final int partCount;
+	private final File stateFile;
+
+	private String uploadId;
+	private String []etags;
+	private final AtomicInteger nextPart = new AtomicInteger();
+	private volatile String error;
+	private volatile boolean missingUpload;
+
+	S3MultipartUpload(S3Connection connection, S3Request request, String contentType)
+	{
+		this.connection = connection;
+		this.request = request;
+		this.file = ((S3Body.FileBody)request.body).file;
+		this.length = this.file.length();
+		this.modified = this.file.lastModified();
+		this.contentType = contentType;
+		this.partSize = connection.getPartSize();
+		this.partCount = (int)((this.length + this.partSize - 1) / this.partSize);
+		this.stateFile = connection.getResumeDirectory() != null ? new File(connection.getResumeDirectory(), getStateName(request, this.file)) : null;
+	}
+
+	// Parts are sent by the upload's own thread and by threads from this pool, which grows as needed
+	// so a part is never stuck behind the uploads waiting in the S3UploadScheduler, S3Download fetches its parts with it too
+	static synchronized ExecutorService getPartExecutor()
+	{
+		if(partExecutor == null)
+		{
+			partExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+				private int count = 0;
+
+				public synchronized Thread newThread(Runnable runnable)
+				{
+					Thread thread = new Thread(runnable, "S3Part-" + (++this.count));
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return partExecutor;
+	}
+
+	/**
+	 * Runs the upload on the calling thread, returns the error or null.
+	 */
+	String run() throws IOException
+	{
+		String result;
+		boolean resumed = this.loadState();
+
+		if(!resumed && (result = this.initiate()) != null)
+			return result;
+
+		result = this.sendParts();
+		if(result == null)
+			result = this.finish();
+
+		// The saved upload ID has expired or been aborted, start over once with a new upload
+		if(result != null && this.missingUpload && resumed && !this.request.isCancelled())
+		{
+			this.deleteState();
+			this.request.addBytesSent(-this.request.getBytesSent());
+			this.missingUpload = false;
+			this.error = null;
+			this.nextPart.set(0);
+			if((result = this.initiate()) != null)
+				return result;
+			result = this.sendParts();
+			if(result == null)
+				result = this.finish();
+		}
+
+		if((result != null || this.request.isCancelled()) && this.stateFile == null)
+			this.abort();
+		return result;
+	}
+
+	private String initiate() throws IOException
+	{
+		HttpPost httpRequest = new HttpPost(this.connection.getUrl(this.request, "uploads"));
+		HttpResponse response;
+
+		this.connection.setObjectHeaders(httpRequest, this.request, this.contentType);
+		response = this.connection.execute(this.request, httpRequest, null, this.contentType, "uploads");
+		if(response == null)
+			return null;
+		if(response.getStatusLine().getStatusCode() != 200)
+			return this.connection.getResponseError(this.request, response);
+
+		this.uploadId = readResponse(response, INITIATE_FIELDS)[0];
+		if(this.uploadId == null)
+			return ERROR_NOUPLOADID;
+		this.etags = new String[this.partCount];
+		this.saveState();
+		return null;
+	}
+
+	// Sends the missing parts, using up to partConcurrency threads including this one
+	private String sendParts() throws IOException
+	{
+		Runnable sender = new Runnable() {
+			public void run()
+			{
+				S3MultipartUpload.this.sendPartsLoop();
+			}
+		};
+		int threads = Math.min(this.connection.getPartConcurrency(), this.getMissingCount());
+		Future<?> []futures = new Future<?>[Math.max(threads - 1, 0)];
+
+		for(int i = 0; i < futures.length; ++i)
+			futures[i] = getPartExecutor().submit(sender);
+		sender.run();
+		for(int i = 0; i < futures.length; ++i)
+		{
+			try
+			{
+				futures[i].get();
+			}
+			catch(Exception e)
+			{
+				if(this.error == null)
+					this.error = e.getMessage();
+			}
+		}
+		return this.error;
+	}
+
+	private void sendPartsLoop()
+	{
+		int index;
+
+		while(this.error == null && !this.request.isCancelled() && (index = this.nextPart.getAndIncrement()) < this.partCount)
+		{
+			if(this.getEtag(index) != null)
+				continue;
+			try
+			{
+				this.sendPart(index);
+			}
+			catch(Exception e)
+			{
+				if(this.error == null)
+					this.error = e.getMessage() != null ? e.getMessage() : S3Connection.ERROR_BADCONNECTION;
+			}
+		}
+	}
+
+	private void sendPart(int index) throws IOException
+	{
+		long offset = index * this.partSize;
+		S3Body body = new S3Body.FileRegionBody(this.file, offset, Math.min(this.partSize, this.length - offset));
+		S3RequestEntity entity = new S3RequestEntity(this.request, body, null);
+		String subresource = "partNumber=" + (index + 1) + "&uploadId=" + this.uploadId;
+		String md5 = this.connection.getContentMD5(this.request, body);
+		HttpPut httpRequest = new HttpPut(this.connection.getUrl(this.request, subresource));
+		HttpResponse response;
+		Header etag;
+		int status;
+
+		if(md5 != null)
+			httpRequest.setHeader("Content-MD5", md5);
+		httpRequest.setEntity(entity);
+		response = this.connection.execute(this.request, httpRequest, md5, null, subresource);
+		if(response == null)
+			return;
+
+		status = response.getStatusLine().getStatusCode();
+		if(status != 200)
+		{
+			if(status == 404)
+				this.missingUpload = true;
+			throw new IOException(this.connection.getResponseError(this.request, response));
+		}
+		etag = response.getFirstHeader("ETag");
+		S3ClientPool.release(response);
+		if(etag == null)
+			throw new IOException(S3Connection.ERROR_HTTPERROR);
+		this.setEtag(index, etag.getValue());
+	}
+
+	private String finish() throws IOException
+	{
+		HttpPost httpRequest;
+		HttpResponse response;
+		StringBuilder xml = new StringBuilder(64 + this.partCount * 80);
+		String []values;
+		String subresource = "uploadId=" + this.uploadId;
+
+		if(this.request.isCancelled())
+			return null;
+		if(this.file.length() != this.length || this.file.lastModified() != this.modified)
+			return ERROR_CHANGED;
+
+		xml.append("<CompleteMultipartUpload>");
+		for(int i = 0; i < this.partCount; ++i)
+			xml.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>").append(this.getEtag(i)).append("</ETag></Part>");
+		xml.append("</CompleteMultipartUpload>");
+
+		httpRequest = new HttpPost(this.connection.getUrl(this.request, subresource));
+		httpRequest.setHeader("Content-Type", "application/xml");
+		httpRequest.setEntity(new ByteArrayEntity(xml.toString().getBytes("UTF-8")));
+		response = this.connection.execute(this.request, httpRequest, null, "application/xml", subresource);
+		if(response == null)
+			return null;
+		if(response.getStatusLine().getStatusCode() != 200)
+		{
+			if(response.getStatusLine().getStatusCode() == 404)
+				this.missingUpload = true;
+			return this.connection.getResponseError(this.request, response);
+		}
+
+		// Completing can fail after the 200 status has been sent, in which case the body is an error
+		values = readResponse(response, COMPLETE_FIELDS);
+		if(values[1] != null)
+			return values[2] != null ? values[2] : S3Connection.ERROR_HTTPERROR;
+		this.request.setETag(values[0]);
+		this.deleteState();
+		return null;
+	}
+
+	// Tells S3 to throw away the parts, otherwise they are kept and charged for
+	private void abort()
+	{
+		HttpDelete httpRequest;
+		String subresource = "uploadId=" + this.uploadId;
+
+		if(this.uploadId == null)
+			return;
+		try
+		{
+			httpRequest = new HttpDelete(this.connection.getUrl(this.request, subresource));
+			// Not attached to the S3Request so it is still sent after a cancel
+			this.connection.sign(this.request, httpRequest, null, null, subresource);
+			S3ClientPool.release(this.connection.getClientPool().getClient().execute(httpRequest));
+		}
+		catch(Exception e) {}
+	}
+
+	private synchronized String getEtag(int index)
+	{
+		return this.etags[index];
+	}
+
+	private synchronized int getMissingCount()
+	{
+		int count = 0;
+		for(int i = 0; i < this.partCount; ++i)
+		{
+			if(this.etags[i] == null)
+				++count;
+		}
+		return count;
+	}
+
+	private synchronized void setEtag(int index, String etag) throws IOException
+	{
+		this.etags[index] = etag;
+		this.saveState();
+	}
+
+	// The state file name comes from the bucket, key and file so every upload has its own
+	private static String getStateName(S3Request request, File file)
+	{
+		try
+		{
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			StringBuilder name = new StringBuilder(40);
+			md.update((request.getBucket() + "/" + request.getKey() + "\n" + file.getAbsolutePath()).getBytes("UTF-8"));
+			for(byte b : md.digest())
+				name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			return name.append(STATE_SUFFIX).toString();
+		}
+		catch(Exception e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// Loads a saved upload of this file, returns false if there is none or the file has changed since
+	private synchronized boolean loadState()
+	{
+		Properties state = new Properties();
+		InputStream in;
+
+		if(this.stateFile == null || !this.stateFile.exists())
+			return false;
+		try
+		{
+			in = new FileInputStream(this.stateFile);
+			try
+			{
+				state.load(in);
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch(IOException e)
+		{
+			this.deleteState();
+			return false;
+		}
+
+		if(!String.valueOf(this.length).equals(state.getProperty("length")) ||
+			!String.valueOf(this.modified).equals(state.getProperty("modified")) ||
+			!String.valueOf(this.partSize).equals(state.getProperty("partSize")) ||
+			state.getProperty("uploadId") == null)
+		{
+			// Throw away the parts of the old version of the file
+			this.uploadId = state.getProperty("uploadId");
+			this.abort();
+			this.uploadId = null;
+			this.deleteState();
+			return false;
+		}
+
+		this.uploadId = state.getProperty("uploadId");
+		this.etags = new String[this.partCount];
+		for(int i = 0; i < this.partCount; ++i)
+		{
+			this.etags[i] = state.getProperty("part." + (i + 1));
+			if(this.etags[i] != null)
+				this.request.addBytesSent(Math.min(this.partSize, this.length - i * this.partSize));
+		}
+		return true;
+	}
+
+	// Written to a temporary file and renamed, so a crash never leaves a half written state
+	private synchronized void saveState() throws IOException
+	{
+		Properties state = new Properties();
+		File temp;
+		FileOutputStream out;
+
+		if(this.stateFile == null)
+			return;
+
+		state.setProperty("bucket", this.request.getBucket());
+		state.setProperty("key", this.request.getKey());
+		state.setProperty("path", this.file.getAbsolutePath());
+		state.setProperty("length", String.valueOf(this.length));
+		state.setProperty("modified", String.valueOf(this.modified));
+		state.setProperty("partSize", String.valueOf(this.partSize));
+		state.setProperty("uploadId", this.uploadId);
+		for(int i = 0; i < this.partCount; ++i)
+		{
+			if(this.etags[i] != null)
+				state.setProperty("part." + (i + 1), this.etags[i]);
+		}
+
+		this.stateFile.getParentFile().mkdirs();
+		temp = new File(this.stateFile.getPath() + ".tmp");
+		out = new FileOutputStream(temp);
+		try
+		{
+			state.store(out, null);
+			out.getFD().sync();
+		}
+		finally
+		{
+			out.close();
+		}
+		if(!temp.renameTo(this.stateFile))
+		{
+			this.stateFile.delete();
+			if(!temp.renameTo(this.stateFile))
+				throw new IOException("Could not save the upload state.");
+		}
+	}
+
+	private void deleteState()
+	{
+		if(this.stateFile != null)
+			this.stateFile.delete();
+	}
+
+	// Reads the elements named in names out of an XML response body and releases the connection, missing ones are null
+	private static String[] readResponse(HttpResponse response, String []names) throws IOException
+	{
+		String []values = new String[names.length];
+		InputStream in;
+
+		if(response.getEntity() == null)
+			return values;
+		in = response.getEntity().getContent();
+		try
+		{
+			S3Error.parse(in, names, values);
+		}
+		catch(XmlPullParserException e)
+		{
+			// A body that is not XML has none of them
+		}
+		finally
+		{
+			in.close();
+			S3ClientPool.release(response);
+		}
+		return values;
+	}
+}
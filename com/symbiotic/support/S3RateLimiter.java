@@ -0,0 +1,83 @@
+package com.symbiotic.support;
+
+/**
+ * A token bucket that limits how fast upload bodies are written, shared by every upload of the connections it is set on,
+ * see S3Connection.setRateLimiter. Tokens are bytes and refill at the rate, up to the burst.
+ * Each write takes its bytes as soon as it asks and then waits until the bucket could have given them, so writers are served
+ * in the order they ask and the lock is only held to do the arithmetic.
+ */
+public final class S3RateLimiter
+{
+	// The burst when none is given, in milliseconds of the rate
+	public static final long DEFAULT_BURST_TIME = 100;
+	public static final long MIN_BURST = 16 * 1024;
+
+	private long rate;
+	private long burst;
+	// When the bucket will be full again, in System.nanoTime
+	private long fullAt = System.nanoTime();
+
+	/**
+	 * bytesPerSecond of 0 or less does not limit at all.
+	 */
+	public S3RateLimiter(long bytesPerSecond)
+	{
+		this.setRate(bytesPerSecond);
+	}
+
+	public S3RateLimiter(long bytesPerSecond, long burst)
+	{
+		this.setRate(bytesPerSecond, burst);
+	}
+
+	public synchronized long getRate()
+	{
+		return this.rate;
+	}
+
+	public synchronized long getBurst()
+	{
+		return this.burst;
+	}
+
+	/**
+	 * Changes the rate, with a burst of DEFAULT_BURST_TIME of it. Writes that are already waiting keep their place.
+	 */
+	public void setRate(long bytesPerSecond)
+	{
+		this.setRate(bytesPerSecond, Math.max(bytesPerSecond * DEFAULT_BURST_TIME / 1000, MIN_BURST));
+	}
+
+	public synchronized void setRate(long bytesPerSecond, long burst)
+	{
+		this.rate = Math.max(bytesPerSecond, 0);
+		this.burst = Math.max(burst, 1);
+	}
+
+	/**
+	 * Blocks until count bytes may be written.
+	 */
+	public void acquire(int count) throws InterruptedException
+	{
+		long wait = this.reserve(count);
+
+		if(wait > 0)
+			Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+	}
+
+	// Takes count bytes from the bucket and returns how many nanoseconds to wait before writing them
+	synchronized long reserve(int count)
+	{
+		long now, burstTime;
+
+		if(this.rate <= 0)
+			return 0;
+		now = System.nanoTime();
+		burstTime = (long)(this.burst * 1e9 / this.rate);
+		// A bucket that has been full for a while has no more than the burst in it
+		if(this.fullAt - now < 0)
+			this.fullAt = now;
+		this.fullAt += (long)(count * 1e9 / this.rate);
+		return Math.max(this.fullAt - burstTime - now, 0);
+	}
+}
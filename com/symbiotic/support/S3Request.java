@@ -0,0 +1,330 @@
+package com.symbiotic.support;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.http.client.methods.HttpRequestBase;
+
+/**
+ * A handle to a single request started by an S3Connection.
+ * Every upload gets its own handle, so one connection can run many uploads at once
+ * and each one can be cancelled, polled or waited on without affecting the others.
+ */
+public final class S3Request
+{
+	public static final int STATUS_QUEUED = 0;
+	public static final int STATUS_RUNNING = 1;
+	public static final int STATUS_SUCCEEDED = 2;
+	public static final int STATUS_FAILED = 3;
+	public static final int STATUS_CANCELLED = 4;
+
+	interface FinishListener
+	{
+		void requestFinished(S3Request request);
+	}
+
+	private final S3Connection connection;
+	private final String bucket;
+	private final String key;
+	private final int options;
+	private final S3Connection.RequestListener listener;
+	private final CountDownLatch done = new CountDownLatch(1);
+	// Replaced by the compressed body when the upload is gzipped
+	volatile S3Body body;
+	final String contentType;
+	final HashMap<String, String> headers;
+	// The file a download is written to and its listener, null for uploads
+	File downloadFile;
+	S3Connection.DownloadListener downloadListener;
+	// The size of a download once the first response says it
+	private volatile long downloadLength = -1;
+
+	private int status = STATUS_QUEUED;
+	private volatile String error;
+	private volatile S3Error s3Error;
+	private volatile String etag;
+	private volatile boolean skipped;
+	private final AtomicLong bytesSent = new AtomicLong();
+	private final HashSet<HttpRequestBase> httpRequests = new HashSet<HttpRequestBase>();
+	// Microseconds spent in each S3Metrics phase, summed over retries and parts
+	private final AtomicLongArray times = new AtomicLongArray(S3Metrics.TIME_COUNT);
+	private final AtomicInteger retries = new AtomicInteger();
+	final long created = System.nanoTime();
+	// The metrics of the connection when the request was started, or null
+	S3Metrics metrics;
+	// Shared by the uploads of the connections it was set on when the request was started, or null
+	S3RateLimiter rateLimiter;
+	// Told when the request has finished or been cancelled, used by S3Batch and S3UploadQueue
+	FinishListener finishListener;
+	// Progress is reported once both thresholds have passed since the last report, with one report at a time waiting for the UI thread
+	S3Connection.ProgressListener progressListener;
+	long progressBytes;
+	long progressInterval;
+	private volatile long reportedBytes;
+	private long reportedTime;
+	final AtomicBoolean progressPosted = new AtomicBoolean();
+
+	S3Request(S3Connection connection, String bucket, String key, int options, S3Body body, String contentType, HashMap<String, String> headers, S3Connection.RequestListener listener)
+	{
+		this.connection = connection;
+		this.bucket = bucket;
+		this.key = key;
+		this.options = options;
+		this.body = body;
+		this.contentType = contentType;
+		this.headers = headers;
+		this.listener = listener;
+	}
+
+	public S3Connection getConnection()
+	{
+		return this.connection;
+	}
+
+	public String getBucket()
+	{
+		return this.bucket;
+	}
+
+	public String getKey()
+	{
+		return this.key;
+	}
+
+	public int getOptions()
+	{
+		return this.options;
+	}
+
+	public S3Connection.RequestListener getListener()
+	{
+		return this.listener;
+	}
+
+	public synchronized int getStatus()
+	{
+		return this.status;
+	}
+
+	public synchronized boolean isDone()
+	{
+		return this.status >= STATUS_SUCCEEDED;
+	}
+
+	public synchronized boolean isCancelled()
+	{
+		return this.status == STATUS_CANCELLED;
+	}
+
+	/**
+	 * Returns the error message if the request failed, otherwise null.
+	 */
+	public String getError()
+	{
+		return this.error;
+	}
+
+	/**
+	 * Returns the error response S3 sent if the request failed with one, otherwise null.
+	 */
+	public S3Error getS3Error()
+	{
+		return this.s3Error;
+	}
+
+	/**
+	 * Returns the ETag S3 gave the uploaded object or sent with the downloaded one, or null if the request has not succeeded.
+	 */
+	public String getETag()
+	{
+		return this.etag;
+	}
+
+	/**
+	 * Returns true if the upload succeeded without sending anything because the object on S3 was already the same.
+	 */
+	public boolean isSkipped()
+	{
+		return this.skipped;
+	}
+
+	/**
+	 * Returns the bytes sent so far, or received for a download.
+	 */
+	public long getBytesSent()
+	{
+		return this.bytesSent.get();
+	}
+
+	/**
+	 * Returns the microseconds this request spent in one of the S3Metrics TIME_ phases so far.
+	 * Retries and the parts of a MULTIPART upload add up, so a phase can take longer than the whole upload.
+	 */
+	public long getTime(int time)
+	{
+		return this.times.get(time);
+	}
+
+	/**
+	 * Returns how many times an HTTP request of this upload has been sent again.
+	 */
+	public int getRetryCount()
+	{
+		return this.retries.get();
+	}
+
+	/**
+	 * Returns the size of the body being sent or of the object being downloaded, or -1 if it is not known.
+	 */
+	public long getBytesTotal()
+	{
+		return this.body != null ? this.body.getLength() : this.downloadLength;
+	}
+
+	/**
+	 * Cancels the request, aborting it if it is already being sent.
+	 * Listeners are not called for a cancelled request. Returns false if the request had already finished.
+	 */
+	public boolean cancel()
+	{
+		ArrayList<HttpRequestBase> httpRequests;
+
+		synchronized(this)
+		{
+			if(this.status >= STATUS_SUCCEEDED)
+				return false;
+			this.status = STATUS_CANCELLED;
+			httpRequests = new ArrayList<HttpRequestBase>(this.httpRequests);
+			this.httpRequests.clear();
+		}
+		for(HttpRequestBase httpRequest : httpRequests)
+			httpRequest.abort();
+		this.connection.requestFinished(this);
+		this.done.countDown();
+		return true;
+	}
+
+	/**
+	 * Blocks until the request has finished, failed or been cancelled.
+	 */
+	public void await() throws InterruptedException
+	{
+		this.done.await();
+	}
+
+	/**
+	 * Blocks for up to timeout milliseconds, returns true if the request finished in time.
+	 */
+	public boolean await(long timeout) throws InterruptedException
+	{
+		return this.done.await(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	// Moves a queued request to running, returns false if it was cancelled while queued
+	synchronized boolean begin()
+	{
+		if(this.status != STATUS_QUEUED)
+			return false;
+		this.status = STATUS_RUNNING;
+		return true;
+	}
+
+	// Attaches an HTTP request so cancel can abort it, returns false if the request was cancelled in the meantime
+	// A multipart upload attaches one HTTP request for every part being sent
+	synchronized boolean attach(HttpRequestBase httpRequest)
+	{
+		if(this.status == STATUS_CANCELLED)
+			return false;
+		this.httpRequests.add(httpRequest);
+		return true;
+	}
+
+	synchronized void detach(HttpRequestBase httpRequest)
+	{
+		this.httpRequests.remove(httpRequest);
+	}
+
+	void setETag(String etag)
+	{
+		this.etag = etag;
+	}
+
+	void setBytesTotal(long downloadLength)
+	{
+		this.downloadLength = downloadLength;
+	}
+
+	void setS3Error(S3Error s3Error)
+	{
+		this.s3Error = s3Error;
+	}
+
+	void setSkipped()
+	{
+		this.skipped = true;
+	}
+
+	void addTime(int time, long micros)
+	{
+		this.times.addAndGet(time, micros);
+	}
+
+	void addRetry()
+	{
+		this.retries.incrementAndGet();
+	}
+
+	// Parts are sent on several threads, and a failed attempt takes back what it counted
+	void addBytesSent(long count)
+	{
+		long sent = this.bytesSent.addAndGet(count);
+
+		if(this.progressListener != null)
+			this.updateProgress(sent);
+	}
+
+	// Called for every buffer written, so the common case of not reporting reads a single volatile field
+	private void updateProgress(long sent)
+	{
+		long now;
+
+		if(sent >= this.reportedBytes && sent - this.reportedBytes < this.progressBytes)
+			return;
+		synchronized(this.progressPosted)
+		{
+			now = System.nanoTime();
+			// A retry takes back what it had sent, the next report is counted from there
+			if(sent < this.reportedBytes)
+				this.reportedBytes = sent;
+			else if(sent - this.reportedBytes < this.progressBytes || now - this.reportedTime < this.progressInterval)
+				return;
+			this.reportedBytes = sent;
+			this.reportedTime = now;
+		}
+		this.connection.postProgress(this);
+	}
+
+	// Records the outcome, returns false if the request was cancelled first and nobody should be told
+	// The connection calls requestFinished itself once it has posted the outcome to the listener
+	boolean finish(String error)
+	{
+		synchronized(this)
+		{
+			if(this.status >= STATUS_SUCCEEDED)
+				return false;
+			this.error = error;
+			this.status = error == null ? STATUS_SUCCEEDED : STATUS_FAILED;
+			this.httpRequests.clear();
+		}
+		this.done.countDown();
+		return true;
+	}
+}
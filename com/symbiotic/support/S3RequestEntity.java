@@ -0,0 +1,137 @@
+package com.symbiotic.support;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * Sends an S3Body, or one part of it, and counts the bytes written into its S3Request.
+ * Every write first takes its bytes from the request's S3RateLimiter, if it has one.
+ */
+class S3RequestEntity extends AbstractHttpEntity
+{
+	private final S3Request request;
+	private final S3Body body;
+	private long written;
+	private S3SignerV4.Signature seed;
+	private int chunkSize;
+	// When the last attempt started and finished writing the body, for S3Metrics
+	volatile long writeStarted;
+	volatile long writeFinished;
+
+	S3RequestEntity(S3Request request, S3Body body, String contentType)
+	{
+		this.request = request;
+		this.body = body;
+		if(contentType != null && contentType.length() > 0)
+			this.setContentType(contentType);
+	}
+
+	public boolean isRepeatable()
+	{
+		return true;
+	}
+
+	public long getContentLength()
+	{
+		if(this.seed != null)
+			return S3SignerV4.getStreamingLength(this.body.getLength(), this.chunkSize);
+		return this.body.getLength();
+	}
+
+	long getBodyLength()
+	{
+		return this.body.getLength();
+	}
+
+	/**
+	 * Sends the body as chunks signed with signature version 4, starting from the signature of the request.
+	 * Set again every time the request is signed.
+	 */
+	void setChunkSigning(S3SignerV4.Signature seed, int chunkSize)
+	{
+		this.seed = seed;
+		this.chunkSize = chunkSize;
+	}
+
+	public InputStream getContent() throws IOException
+	{
+		return this.body.openStream();
+	}
+
+	public boolean isStreaming()
+	{
+		return false;
+	}
+
+	public void writeTo(OutputStream out) throws IOException
+	{
+		if(out == null)
+			throw new IllegalArgumentException("Output stream may not be null.");
+		// A retried entity is written again, so the bytes counted by the last attempt are taken back
+		this.request.addBytesSent(-this.written);
+		this.written = 0;
+		this.writeStarted = System.nanoTime();
+		if(this.seed != null)
+		{
+			OutputStream chunked = S3SignerV4.newChunkedStream(out, this.seed, this.chunkSize);
+			this.body.writeTo(new CountingOutputStream(chunked));
+			chunked.close();
+		}
+		else
+		{
+			this.body.writeTo(new CountingOutputStream(out));
+			out.flush();
+		}
+		this.writeFinished = System.nanoTime();
+	}
+
+	// Waits for the rate limiter, a cancel wakes it up and stops the write
+	private void throttle(int count) throws IOException
+	{
+		S3RateLimiter rateLimiter = this.request.rateLimiter;
+		long wait;
+
+		if(rateLimiter == null || (wait = rateLimiter.reserve(count)) <= 0)
+			return;
+		try
+		{
+			if(this.request.await((wait + 999999) / 1000000))
+				throw new InterruptedIOException("Request was cancelled.");
+		}
+		catch(InterruptedException e)
+		{
+			throw new InterruptedIOException(e.getMessage());
+		}
+	}
+
+	private final class CountingOutputStream extends FilterOutputStream
+	{
+		CountingOutputStream(OutputStream out)
+		{
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			S3RequestEntity.this.throttle(1);
+			this.out.write(b);
+			S3RequestEntity.this.written++;
+			S3RequestEntity.this.request.addBytesSent(1);
+		}
+
+		@Override
+		public void write(byte []b, int off, int len) throws IOException
+		{
+			S3RequestEntity.this.throttle(len);
+			this.out.write(b, off, len);
+			S3RequestEntity.this.written += len;
+			S3RequestEntity.this.request.addBytesSent(len);
+		}
+	}
+}
@@ -0,0 +1,229 @@
+package com.symbiotic.support;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Decides when a failed S3 request is sent again and how long to wait before it is.
+ * Network errors, 5xx responses, throttling (SlowDown, 429) and request timeouts are retried
+ * with exponential backoff and full jitter, so clients that failed together do not retry together.
+ * A Retry-After header from the server is respected.
+ *
+ * Every bucket has a retry budget that retries spend and successful requests refill, so a bucket that keeps failing
+ * stops being retried instead of multiplying its load. After a run of failures the circuit for the bucket opens
+ * and requests fail straight away until it has had time to recover.
+ */
+public class S3RetryPolicy
+{
+	public static final int DEFAULT_MAX_ATTEMPTS = 4;
+	public static final long DEFAULT_BASE_DELAY = 200;
+	public static final long DEFAULT_MAX_DELAY = 20000;
+	public static final int DEFAULT_RETRY_BUDGET = 20;
+	public static final int DEFAULT_FAILURE_THRESHOLD = 8;
+	public static final long DEFAULT_OPEN_TIME = 30000;
+
+	// Every success gives back a tenth of a retry
+	private static final double REFILL_PER_SUCCESS = 0.1;
+
+	/**
+	 * Never retries, and never opens the circuit.
+	 */
+	public static final S3RetryPolicy NONE = new S3RetryPolicy(1, 0, 0);
+
+	private static S3RetryPolicy defaultPolicy;
+
+	private final int maxAttempts;
+	private final long baseDelay;
+	private final long maxDelay;
+	private int retryBudget = DEFAULT_RETRY_BUDGET;
+	private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+	private long openTime = DEFAULT_OPEN_TIME;
+	private final Random random = new Random();
+	private final HashMap<String, BucketState> buckets = new HashMap<String, BucketState>();
+
+	private static final class BucketState
+	{
+		double tokens;
+		int failures;
+		long openUntil;
+
+		BucketState(double tokens)
+		{
+			this.tokens = tokens;
+		}
+	}
+
+	public S3RetryPolicy()
+	{
+		this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+	}
+
+	/**
+	 * maxAttempts includes the first attempt. Delays are in milliseconds, the delay before retry n is
+	 * a random time up to min(maxDelay, baseDelay * 2^(n - 1)).
+	 */
+	public S3RetryPolicy(int maxAttempts, long baseDelay, long maxDelay)
+	{
+		this.maxAttempts = Math.max(maxAttempts, 1);
+		this.baseDelay = baseDelay;
+		this.maxDelay = maxDelay;
+	}
+
+	/**
+	 * Returns the policy shared by every S3Connection that has not been given its own, so buckets share their budget.
+	 */
+	public static synchronized S3RetryPolicy getDefault()
+	{
+		if(defaultPolicy == null)
+			defaultPolicy = new S3RetryPolicy();
+		return defaultPolicy;
+	}
+
+	public int getMaxAttempts()
+	{
+		return this.maxAttempts;
+	}
+
+	/**
+	 * Sets how many retries a bucket can have outstanding before it has to earn more with successful requests.
+	 */
+	public synchronized void setRetryBudget(int retryBudget)
+	{
+		this.retryBudget = retryBudget;
+		this.buckets.clear();
+	}
+
+	/**
+	 * Sets how many failures in a row open the circuit for a bucket, and for how many milliseconds it stays open.
+	 */
+	public synchronized void setCircuitBreaker(int failureThreshold, long openTime)
+	{
+		this.failureThreshold = failureThreshold;
+		this.openTime = openTime;
+	}
+
+	/**
+	 * Returns true if a response with this status and S3 error code is worth sending again.
+	 * code can be null when the body has not been read.
+	 */
+	public boolean isRetryable(int status, String code)
+	{
+		if((status >= 500 && status != 501) || status == 429 || status == 408)
+			return true;
+		return code != null && (code.equals("RequestTimeout") || code.equals("SlowDown") || code.equals("Throttling"));
+	}
+
+	/**
+	 * Returns how long to wait before the given retry, 1 being the first.
+	 * retryAfter is the Retry-After header of the response, in seconds or as an HTTP date, or null.
+	 */
+	public long getDelay(int retry, String retryAfter)
+	{
+		long ceiling = this.baseDelay << Math.min(retry - 1, 30);
+		long delay, serverDelay;
+
+		if(ceiling > this.maxDelay || ceiling < 0)
+			ceiling = this.maxDelay;
+		synchronized(this.random)
+		{
+			delay = (long)(this.random.nextDouble() * ceiling);
+		}
+
+		// The server knows better when it will have recovered, but it cannot make the request wait forever
+		if(retryAfter != null && (serverDelay = parseRetryAfter(retryAfter)) >= 0)
+			delay = Math.min(Math.max(delay, serverDelay), this.maxDelay);
+		return delay;
+	}
+
+	/**
+	 * Returns false while the circuit for bucket is open. Once the open time has passed a request is let through to test it.
+	 */
+	public synchronized boolean allowRequest(String bucket)
+	{
+		BucketState state = this.buckets.get(bucket);
+
+		if(state == null || state.openUntil == 0)
+			return true;
+		if(System.currentTimeMillis() < state.openUntil)
+			return false;
+		// Half open, the next failure opens it again straight away
+		state.openUntil = 0;
+		state.failures = this.failureThreshold - 1;
+		return true;
+	}
+
+	/**
+	 * Takes a retry from the budget of bucket, returns false if attempt was the last one allowed or the budget is spent.
+	 */
+	public synchronized boolean acquireRetry(String bucket, int attempt)
+	{
+		BucketState state;
+
+		if(attempt >= this.maxAttempts)
+			return false;
+		state = this.getState(bucket);
+		if(state.tokens < 1)
+			return false;
+		state.tokens -= 1;
+		return true;
+	}
+
+	public synchronized void onSuccess(String bucket)
+	{
+		BucketState state = this.buckets.get(bucket);
+
+		if(state == null)
+			return;
+		state.failures = 0;
+		state.tokens = Math.min(state.tokens + REFILL_PER_SUCCESS, this.retryBudget);
+	}
+
+	public synchronized void onFailure(String bucket)
+	{
+		BucketState state;
+
+		if(this == NONE)
+			return;
+		state = this.getState(bucket);
+		if(++state.failures >= this.failureThreshold)
+			state.openUntil = System.currentTimeMillis() + this.openTime;
+	}
+
+	private BucketState getState(String bucket)
+	{
+		BucketState state = this.buckets.get(bucket);
+
+		if(state == null)
+		{
+			state = new BucketState(this.retryBudget);
+			this.buckets.put(bucket, state);
+		}
+		return state;
+	}
+
+	// Returns the delay in milliseconds, or -1 if the value cannot be read
+	private static long parseRetryAfter(String value)
+	{
+		value = value.trim();
+		try
+		{
+			return Long.parseLong(value) * 1000;
+		}
+		catch(NumberFormatException e) {}
+
+		try
+		{
+			SimpleDateFormat formatter = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+			formatter.setTimeZone(TimeZone.getTimeZone("GMT"));
+			return Math.max(formatter.parse(value).getTime() - System.currentTimeMillis(), 0);
+		}
+		catch(ParseException e)
+		{
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package com.symbiotic.support;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TimeZone;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Signs S3 requests with the legacy HMAC-SHA1 scheme (signature version 2).
+ * The key is set up once, every thread signs with its own copy of the Mac, and the string to sign is built without formatting.
+ * http://docs.aws.amazon.com/AmazonS3/latest/dev/RESTAuthentication.html
+ */
+public final class S3Signer
+{
+	private static final String ALGORITHM = "HmacSHA1";
+	private static final String DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss +0000";
+
+	private static final ThreadLocal<SimpleDateFormat> dateFormats = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue()
+		{
+			SimpleDateFormat formatter = new SimpleDateFormat(DATE_FORMAT, Locale.US);
+			formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
+			return formatter;
+		}
+	};
+
+	// The Date header only changes once a second, so it is formatted once a second
+	private static volatile CachedDate cachedDate;
+
+	private final String accessKeyId;
+	private final SecretKeySpec key;
+	private final Mac mac;
+	private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+		@Override
+		protected Mac initialValue()
+		{
+			return S3Signer.this.newMac();
+		}
+	};
+
+	private static final class CachedDate
+	{
+		final long second;
+		final String value;
+
+		CachedDate(long second, String value)
+		{
+			this.second = second;
+			this.value = value;
+		}
+	}
+
+	public S3Signer(String accessKeyId, String secretAccessKey)
+	{
+		this.accessKeyId = accessKeyId;
+		try
+		{
+			this.key = new SecretKeySpec(secretAccessKey.getBytes("UTF-8"), ALGORITHM);
+			this.mac = Mac.getInstance(ALGORITHM);
+			this.mac.init(this.key);
+		}
+		catch(Exception e)
+		{
+			throw new IllegalStateException("HMAC failed with error: " + e.getMessage(), e);
+		}
+	}
+
+	public String getAccessKeyId()
+	{
+		return this.accessKeyId;
+	}
+
+	/**
+	 * Returns the current time formatted for the Date header.
+	 */
+	public static String getDateHeader()
+	{
+		return getDateHeader(System.currentTimeMillis());
+	}
+
+	public static String getDateHeader(long time)
+	{
+		long second = time / 1000;
+		CachedDate date = cachedDate;
+
+		if(date == null || date.second != second)
+		{
+			date = new CachedDate(second, dateFormats.get().format(new Date(second * 1000)));
+			cachedDate = date;
+		}
+		return date.value;
+	}
+
+	/**
+	 * Returns the value of the Authorization header.
+	 * amzHeaders are the x-amz- headers of the request with lower case names, sorted by name, or null if there are none.
+	 * resource is the key, followed by the query string if it has a subresource such as ?uploads.
+	 */
+	public String sign(String verb, String md5, String contentType, String date, Map<String, String> amzHeaders, String bucket, String resource)
+	{
+		StringBuilder builder = new StringBuilder(128 + resource.length());
+		byte []signature;
+
+		// Create the string to sign
+		builder.append(verb).append('\n');
+		if(md5 != null)
+			builder.append(md5);
+		builder.append('\n');
+		if(contentType != null)
+			builder.append(contentType);
+		builder.append('\n').append(date).append('\n');
+		if(amzHeaders != null)
+		{
+			for(Entry<String, String> header : amzHeaders.entrySet())
+				builder.append(header.getKey()).append(':').append(header.getValue().trim()).append('\n');
+		}
+		builder.append('/').append(bucket);
+		if(!resource.startsWith("/"))
+			builder.append('/');
+		builder.append(resource);
+
+		// Create the signature
+		try
+		{
+			signature = this.macs.get().doFinal(builder.toString().getBytes("UTF-8"));
+		}
+		catch(UnsupportedEncodingException e)
+		{
+			throw new IllegalStateException(e);
+		}
+
+		builder.setLength(0);
+		return builder.append("AWS ").append(this.accessKeyId).append(':').append(Base64.encode(signature)).toString();
+	}
+
+	// Copying the initialized Mac skips looking up the provider and setting up the key again
+	private Mac newMac()
+	{
+		try
+		{
+			synchronized(this.mac)
+			{
+				return (Mac)this.mac.clone();
+			}
+		}
+		catch(CloneNotSupportedException e)
+		{
+			// Some providers cannot copy a Mac, so each thread sets up its own once
+			try
+			{
+				Mac mac = Mac.getInstance(ALGORITHM);
+				mac.init(this.key);
+				return mac;
+			}
+			catch(GeneralSecurityException ex)
+			{
+				throw new IllegalStateException("HMAC failed with error: " + ex.getMessage(), ex);
+			}
+		}
+	}
+}
@@ -0,0 +1,533 @@
+package com.symbiotic.support;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Signs requests with AWS signature version 4 (HMAC-SHA256), which every region accepts.
+ * The signing key derived for a day, region and service is cached, so a request costs two hashes and one HMAC.
+ * The payload can be signed by its SHA-256, left unsigned, or signed chunk by chunk while it is streamed,
+ * which lets a large body start sending without reading it first.
+ * http://docs.aws.amazon.com/general/latest/gr/signature-version-4.html
+ * http://docs.aws.amazon.com/AmazonS3/latest/API/sigv4-streaming.html
+ */
+public final class S3SignerV4
+{
+	public static final String ALGORITHM = "AWS4-HMAC-SHA256";
+	public static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+	public static final String STREAMING_PAYLOAD = "STREAMING-AWS4-HMAC-SHA256-PAYLOAD";
+	public static final String EMPTY_SHA256 = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+	public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+	private static final String CHUNK_ALGORITHM = "AWS4-HMAC-SHA256-PAYLOAD";
+	private static final String CHUNK_SIGNATURE = ";chunk-signature=";
+	private static final int SIGNATURE_LENGTH = 64;
+	private static final int MAX_SIGNING_KEYS = 8;
+
+	private static final ThreadLocal<SimpleDateFormat> dateFormats = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue()
+		{
+			SimpleDateFormat formatter = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'", Locale.US);
+			formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
+			return formatter;
+		}
+	};
+
+	// Each thread keeps a Mac set up with the last signing key it used, the key only changes once a day
+	private static final ThreadLocal<KeyedMac> macs = new ThreadLocal<KeyedMac>() {
+		@Override
+		protected KeyedMac initialValue()
+		{
+			try
+			{
+				return new KeyedMac(Mac.getInstance("HmacSHA256"));
+			}
+			catch(GeneralSecurityException e)
+			{
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	private static volatile CachedDate cachedDate;
+
+	private final String accessKeyId;
+	private final byte []secret;
+	private final String region;
+	private final String service;
+	private final HashMap<String, byte[]> signingKeys = new HashMap<String, byte[]>();
+
+	/**
+	 * The result of signing a request.
+	 */
+	public static final class Signature
+	{
+		private final String signature;
+		private final String authorization;
+		private final String scope;
+		private final String amzDate;
+		private final byte []signingKey;
+
+		Signature(String signature, String authorization, String scope, String amzDate, byte []signingKey)
+		{
+			this.signature = signature;
+			this.authorization = authorization;
+			this.scope = scope;
+			this.amzDate = amzDate;
+			this.signingKey = signingKey;
+		}
+
+		/**
+		 * Returns the hex signature, which is also the seed signature of a streamed payload.
+		 */
+		public String getSignature()
+		{
+			return this.signature;
+		}
+
+		/**
+		 * Returns the value of the Authorization header.
+		 */
+		public String getAuthorization()
+		{
+			return this.authorization;
+		}
+
+		public String getScope()
+		{
+			return this.scope;
+		}
+
+		public String getAmzDate()
+		{
+			return this.amzDate;
+		}
+	}
+
+	private static final class CachedDate
+	{
+		final long second;
+		final String value;
+
+		CachedDate(long second, String value)
+		{
+			this.second = second;
+			this.value = value;
+		}
+	}
+
+	private static final class KeyedMac
+	{
+		final Mac mac;
+		byte []key;
+
+		KeyedMac(Mac mac)
+		{
+			this.mac = mac;
+		}
+	}
+
+	public S3SignerV4(String accessKeyId, String secretAccessKey, String region)
+	{
+		this(accessKeyId, secretAccessKey, region, "s3");
+	}
+
+	public S3SignerV4(String accessKeyId, String secretAccessKey, String region, String service)
+	{
+		this.accessKeyId = accessKeyId;
+		this.secret = utf8("AWS4" + secretAccessKey);
+		this.region = region;
+		this.service = service;
+	}
+
+	public String getRegion()
+	{
+		return this.region;
+	}
+
+	/**
+	 * Returns the current time formatted for the x-amz-date header.
+	 */
+	public static String getAmzDate()
+	{
+		return getAmzDate(System.currentTimeMillis());
+	}
+
+	public static String getAmzDate(long time)
+	{
+		long second = time / 1000;
+		CachedDate date = cachedDate;
+
+		if(date == null || date.second != second)
+		{
+			date = new CachedDate(second, dateFormats.get().format(new Date(second * 1000)));
+			cachedDate = date;
+		}
+		return date.value;
+	}
+
+	/**
+	 * Signs a request.
+	 * path is the absolute path before URI encoding, query the query string already URI encoded, or null.
+	 * headers must include host and x-amz-date, and for S3 x-amz-content-sha256, every header given is signed except Authorization,
+	 * so a request that is sent again can be signed again with its headers as they are.
+	 * payloadHash is the hex SHA-256 of the body, UNSIGNED_PAYLOAD or STREAMING_PAYLOAD.
+	 */
+	public Signature sign(String method, String path, String query, Map<String, String> headers, String payloadHash, String amzDate)
+	{
+		StringBuilder builder = new StringBuilder(512);
+		StringBuilder signedHeaders = new StringBuilder(128);
+		String scope = getScope(amzDate);
+		byte []signingKey = this.getSigningKey(amzDate.substring(0, 8));
+		String signature;
+
+		appendCanonicalRequest(builder, signedHeaders, method, path, query, headers, payloadHash);
+
+		// Create the string to sign from its hash and sign it
+		String canonicalRequestHash = sha256Hex(utf8(builder.toString()));
+		builder.setLength(0);
+		appendStringToSign(builder, amzDate, scope, canonicalRequestHash);
+		signature = toHex(hmac(signingKey, utf8(builder.toString())));
+
+		builder.setLength(0);
+		builder.append(ALGORITHM).append(" Credential=").append(this.accessKeyId).append('/').append(scope);
+		builder.append(", SignedHeaders=").append(signedHeaders).append(", Signature=").append(signature);
+		return new Signature(signature, builder.toString(), scope, amzDate, signingKey);
+	}
+
+	// Appends the canonical request to builder and the names of the headers it signs to signedHeaders
+	static void appendCanonicalRequest(StringBuilder builder, StringBuilder signedHeaders, String method, String path, String query, Map<String, String> headers, String payloadHash)
+	{
+		TreeMap<String, String> canonicalHeaders = new TreeMap<String, String>();
+
+		for(Entry<String, String> header : headers.entrySet())
+		{
+			String name = header.getKey().toLowerCase(Locale.US);
+			String value, existing;
+
+			// The signature of an earlier attempt is never part of the next one
+			if(name.equals("authorization"))
+				continue;
+			value = collapseSpaces(header.getValue());
+			existing = canonicalHeaders.get(name);
+			canonicalHeaders.put(name, existing != null ? existing + "," + value : value);
+		}
+
+		builder.append(method).append('\n');
+		uriEncode(builder, path, false);
+		builder.append('\n');
+		appendCanonicalQuery(builder, query);
+		builder.append('\n');
+		for(Entry<String, String> header : canonicalHeaders.entrySet())
+		{
+			builder.append(header.getKey()).append(':').append(header.getValue()).append('\n');
+			if(signedHeaders.length() > 0)
+				signedHeaders.append(';');
+			signedHeaders.append(header.getKey());
+		}
+		builder.append('\n').append(signedHeaders).append('\n').append(payloadHash);
+	}
+
+	static void appendStringToSign(StringBuilder builder, String amzDate, String scope, String canonicalRequestHash)
+	{
+		builder.append(ALGORITHM).append('\n').append(amzDate).append('\n').append(scope).append('\n').append(canonicalRequestHash);
+	}
+
+	/**
+	 * Returns the signature of one chunk of a streamed payload, chained to the signature of the previous chunk.
+	 */
+	public static String signChunk(Signature seed, String previousSignature, byte []data, int offset, int length)
+	{
+		StringBuilder builder = new StringBuilder(CHUNK_ALGORITHM.length() + 256);
+
+		builder.append(CHUNK_ALGORITHM).append('\n').append(seed.amzDate).append('\n').append(seed.scope).append('\n');
+		builder.append(previousSignature).append('\n').append(EMPTY_SHA256).append('\n').append(sha256Hex(data, offset, length));
+		return toHex(hmac(seed.signingKey, utf8(builder.toString())));
+	}
+
+	/**
+	 * Returns the Content-Length of a streamed payload of length bytes, which is larger than length by the chunk headers.
+	 */
+	public static long getStreamingLength(long length, int chunkSize)
+	{
+		long fullChunks = length / chunkSize;
+		int lastChunk = (int)(length % chunkSize);
+		long total = fullChunks * getChunkLength(chunkSize);
+
+		if(lastChunk > 0)
+			total += getChunkLength(lastChunk);
+		return total + getChunkLength(0);
+	}
+
+	// hex size;chunk-signature=signature\r\ndata\r\n
+	private static long getChunkLength(int size)
+	{
+		return Integer.toHexString(size).length() + CHUNK_SIGNATURE.length() + SIGNATURE_LENGTH + 2 + size + 2;
+	}
+
+	/**
+	 * Wraps out so that what is written to it is sent as signed chunks of chunkSize bytes. close writes the final chunk.
+	 */
+	public static OutputStream newChunkedStream(OutputStream out, Signature seed, int chunkSize)
+	{
+		return new ChunkedOutputStream(out, seed, chunkSize);
+	}
+
+	private static final class ChunkedOutputStream extends FilterOutputStream
+	{
+		private final Signature seed;
+		private final byte []buffer;
+		private String previousSignature;
+		private int count;
+		private boolean finished;
+
+		ChunkedOutputStream(OutputStream out, Signature seed, int chunkSize)
+		{
+			super(out);
+			this.seed = seed;
+			this.buffer = new byte[chunkSize];
+			this.previousSignature = seed.signature;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			this.buffer[this.count++] = (byte)b;
+			if(this.count == this.buffer.length)
+				this.writeChunk();
+		}
+
+		@Override
+		public void write(byte []b, int off, int len) throws IOException
+		{
+			while(len > 0)
+			{
+				int copy = Math.min(len, this.buffer.length - this.count);
+				System.arraycopy(b, off, this.buffer, this.count, copy);
+				this.count += copy;
+				off += copy;
+				len -= copy;
+				if(this.count == this.buffer.length)
+					this.writeChunk();
+			}
+		}
+
+		// Chunks have to be exactly chunkSize bytes to match the Content-Length, so flush does not write a partial chunk
+		@Override
+		public void flush() throws IOException
+		{
+			this.out.flush();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			if(!this.finished)
+			{
+				if(this.count > 0)
+					this.writeChunk();
+				this.writeChunk();
+				this.finished = true;
+			}
+			this.out.flush();
+		}
+
+		private void writeChunk() throws IOException
+		{
+			String signature = signChunk(this.seed, this.previousSignature, this.buffer, 0, this.count);
+			StringBuilder header = new StringBuilder(Integer.toHexString(this.count));
+
+			header.append(CHUNK_SIGNATURE).append(signature).append("\r\n");
+			this.out.write(header.toString().getBytes("US-ASCII"));
+			this.out.write(this.buffer, 0, this.count);
+			this.out.write('\r');
+			this.out.write('\n');
+			this.previousSignature = signature;
+			this.count = 0;
+		}
+	}
+
+	private String getScope(String amzDate)
+	{
+		return new StringBuilder(64).append(amzDate, 0, 8).append('/').append(this.region).append('/').append(this.service).append("/aws4_request").toString();
+	}
+
+	// kSigning = HMAC(HMAC(HMAC(HMAC("AWS4" + secret, date), region), service), "aws4_request")
+	private byte[] getSigningKey(String date)
+	{
+		byte []key;
+
+		synchronized(this.signingKeys)
+		{
+			if((key = this.signingKeys.get(date)) != null)
+				return key;
+		}
+
+		key = hmac(this.secret, utf8(date));
+		key = hmac(key, utf8(this.region));
+		key = hmac(key, utf8(this.service));
+		key = hmac(key, utf8("aws4_request"));
+
+		synchronized(this.signingKeys)
+		{
+			if(this.signingKeys.size() >= MAX_SIGNING_KEYS)
+				this.signingKeys.clear();
+			this.signingKeys.put(date, key);
+		}
+		return key;
+	}
+
+	private static byte[] hmac(byte []key, byte []data)
+	{
+		KeyedMac keyedMac = macs.get();
+
+		try
+		{
+			if(keyedMac.key != key)
+			{
+				keyedMac.mac.init(new SecretKeySpec(key, "HmacSHA256"));
+				keyedMac.key = key;
+			}
+			return keyedMac.mac.doFinal(data);
+		}
+		catch(GeneralSecurityException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static String sha256Hex(byte []data)
+	{
+		return sha256Hex(data, 0, data.length);
+	}
+
+	public static String sha256Hex(byte []data, int offset, int length)
+	{
+		try
+		{
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update(data, offset, length);
+			return toHex(md.digest());
+		}
+		catch(GeneralSecurityException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte []data)
+	{
+		char []hex = new char[data.length * 2];
+		for(int i = 0; i < data.length; ++i)
+		{
+			hex[i * 2] = Character.forDigit((data[i] >> 4) & 0xf, 16);
+			hex[i * 2 + 1] = Character.forDigit(data[i] & 0xf, 16);
+		}
+		return new String(hex);
+	}
+
+	private static byte[] utf8(String string)
+	{
+		try
+		{
+			return string.getBytes("UTF-8");
+		}
+		catch(UnsupportedEncodingException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// Trims the value and replaces runs of spaces with a single space
+	private static String collapseSpaces(String value)
+	{
+		StringBuilder builder = new StringBuilder(value.length());
+		boolean space = false;
+
+		value = value.trim();
+		for(int i = 0; i < value.length(); ++i)
+		{
+			char c = value.charAt(i);
+			if(c == ' ')
+			{
+				if(!space)
+					builder.append(c);
+				space = true;
+			}
+			else
+			{
+				builder.append(c);
+				space = false;
+			}
+		}
+		return builder.toString();
+	}
+
+	// Sorts the parameters by name and then value, adding the = to parameters without a value
+	private static void appendCanonicalQuery(StringBuilder builder, String query)
+	{
+		ArrayList<String[]> parameters;
+
+		if(query == null || query.length() == 0)
+			return;
+		parameters = new ArrayList<String[]>();
+		for(String parameter : query.split("&"))
+		{
+			int equals = parameter.indexOf('=');
+			if(parameter.length() == 0)
+				continue;
+			if(equals >= 0)
+				parameters.add(new String[] { parameter.substring(0, equals), parameter.substring(equals + 1) });
+			else
+				parameters.add(new String[] { parameter, "" });
+		}
+		Collections.sort(parameters, new Comparator<String[]>() {
+			public int compare(String []a, String []b)
+			{
+				int result = a[0].compareTo(b[0]);
+				return result != 0 ? result : a[1].compareTo(b[1]);
+			}
+		});
+		for(int i = 0; i < parameters.size(); ++i)
+		{
+			if(i > 0)
+				builder.append('&');
+			builder.append(parameters.get(i)[0]).append('=').append(parameters.get(i)[1]);
+		}
+	}
+
+	/**
+	 * URI encodes value as SigV4 requires: everything but A-Z, a-z, 0-9, '-', '.', '_' and '~' is percent encoded,
+	 * and '/' too unless it separates path segments.
+	 */
+	public static void uriEncode(StringBuilder builder, String value, boolean encodeSlash)
+	{
+		for(byte b : utf8(value))
+		{
+			int c = b & 0xff;
+			if((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '.' || c == '_' || c == '~' || (c == '/' && !encodeSlash))
+				builder.append((char)c);
+			else
+				builder.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16))).append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
+		}
+	}
+}
@@ -0,0 +1,244 @@
+package com.symbiotic.support;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Remembers the Content-MD5 of files and the ETag they were last uploaded with, saved to a file between runs.
+ * Entries are keyed by the file's path and are only used while its size and modification time are unchanged,
+ * so an unchanged file is neither hashed nor sent again. The least recently used files are dropped past maxEntries.
+ */
+public final class S3UploadCache
+{
+	public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+	private static final int MAGIC = 0x53335543;
+	private static final int VERSION = 1;
+
+	private final File cacheFile;
+	private final int maxEntries;
+	private final LinkedHashMap<String, CacheEntry> entries;
+	private boolean loaded;
+	private boolean dirty;
+
+	private static final class CacheEntry
+	{
+		final long length;
+		final long modified;
+		String contentMD5;
+		// ETags by bucket and key
+		final HashMap<String, String> etags = new HashMap<String, String>();
+
+		CacheEntry(long length, long modified)
+		{
+			this.length = length;
+			this.modified = modified;
+		}
+	}
+
+	public S3UploadCache(File cacheFile)
+	{
+		this(cacheFile, DEFAULT_MAX_ENTRIES);
+	}
+
+	public S3UploadCache(File cacheFile, int maxEntries)
+	{
+		this.cacheFile = cacheFile;
+		this.maxEntries = maxEntries;
+		this.entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest)
+			{
+				return this.size() > S3UploadCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Returns the Content-MD5 of file, or null if it is not known or the file has changed since.
+	 */
+	public synchronized String getContentMD5(File file)
+	{
+		CacheEntry entry = this.getEntry(file);
+		return entry != null ? entry.contentMD5 : null;
+	}
+
+	public synchronized void putContentMD5(File file, String contentMD5)
+	{
+		this.getOrCreateEntry(file).contentMD5 = contentMD5;
+		this.dirty = true;
+	}
+
+	/**
+	 * Returns the ETag file was uploaded to bucket and key with, or null if it has not been uploaded there or has changed since.
+	 */
+	public synchronized String getETag(File file, String bucket, String key)
+	{
+		CacheEntry entry = this.getEntry(file);
+		return entry != null ? entry.etags.get(bucket + "/" + key) : null;
+	}
+
+	public synchronized void putETag(File file, String bucket, String key, String etag)
+	{
+		this.getOrCreateEntry(file).etags.put(bucket + "/" + key, etag);
+		this.dirty = true;
+	}
+
+	public synchronized void remove(File file)
+	{
+		this.load();
+		if(this.entries.remove(file.getAbsolutePath()) != null)
+			this.dirty = true;
+	}
+
+	public synchronized void clear()
+	{
+		this.load();
+		this.entries.clear();
+		this.dirty = true;
+	}
+
+	public synchronized int size()
+	{
+		this.load();
+		return this.entries.size();
+	}
+
+	/**
+	 * Saves the cache if it has changed. S3Connection calls this after every upload that updates it.
+	 */
+	public synchronized void flush() throws IOException
+	{
+		File temp;
+		DataOutputStream out;
+
+		if(!this.dirty)
+			return;
+
+		if(this.cacheFile.getParentFile() != null)
+			this.cacheFile.getParentFile().mkdirs();
+		temp = new File(this.cacheFile.getPath() + ".tmp");
+		FileOutputStream fileOut = new FileOutputStream(temp);
+		out = new DataOutputStream(new BufferedOutputStream(fileOut));
+		try
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(this.entries.size());
+			// Least recently used first, so loading rebuilds the same order
+			for(Entry<String, CacheEntry> mapEntry : this.entries.entrySet())
+			{
+				CacheEntry entry = mapEntry.getValue();
+				out.writeUTF(mapEntry.getKey());
+				out.writeLong(entry.length);
+				out.writeLong(entry.modified);
+				out.writeUTF(entry.contentMD5 != null ? entry.contentMD5 : "");
+				out.writeInt(entry.etags.size());
+				for(Entry<String, String> etag : entry.etags.entrySet())
+				{
+					out.writeUTF(etag.getKey());
+					out.writeUTF(etag.getValue());
+				}
+			}
+			out.flush();
+			fileOut.getFD().sync();
+		}
+		finally
+		{
+			out.close();
+		}
+		if(!temp.renameTo(this.cacheFile))
+		{
+			this.cacheFile.delete();
+			if(!temp.renameTo(this.cacheFile))
+				throw new IOException("Could not save the upload cache.");
+		}
+		this.dirty = false;
+	}
+
+	private CacheEntry getEntry(File file)
+	{
+		CacheEntry entry;
+		String path = file.getAbsolutePath();
+
+		this.load();
+		if((entry = this.entries.get(path)) == null)
+			return null;
+		if(entry.length != file.length() || entry.modified != file.lastModified())
+		{
+			this.entries.remove(path);
+			this.dirty = true;
+			return null;
+		}
+		return entry;
+	}
+
+	private CacheEntry getOrCreateEntry(File file)
+	{
+		CacheEntry entry = this.getEntry(file);
+
+		if(entry == null)
+		{
+			entry = new CacheEntry(file.length(), file.lastModified());
+			this.entries.put(file.getAbsolutePath(), entry);
+		}
+		return entry;
+	}
+
+	// Reads the saved cache the first time it is needed, a missing or damaged file starts an empty cache
+	private void load()
+	{
+		DataInputStream in;
+
+		if(this.loaded)
+			return;
+		this.loaded = true;
+		if(!this.cacheFile.exists())
+			return;
+
+		try
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.cacheFile)));
+			try
+			{
+				int count;
+
+				if(in.readInt() != MAGIC || in.readInt() != VERSION)
+					return;
+				count = in.readInt();
+				for(int i = 0; i < count; ++i)
+				{
+					String path = in.readUTF();
+					CacheEntry entry = new CacheEntry(in.readLong(), in.readLong());
+					String contentMD5 = in.readUTF();
+					int etagCount = in.readInt();
+
+					entry.contentMD5 = contentMD5.length() > 0 ? contentMD5 : null;
+					for(int j = 0; j < etagCount; ++j)
+						entry.etags.put(in.readUTF(), in.readUTF());
+					this.entries.put(path, entry);
+				}
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch(IOException e)
+		{
+			this.entries.clear();
+		}
+	}
+}
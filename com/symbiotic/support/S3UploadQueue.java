@@ -0,0 +1,707 @@
+package com.symbiotic.support;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * A queue of uploads kept in an append-only journal file, so uploads that were waiting or running when the process
+ * was killed are sent once it starts again. A drain thread hands the queued uploads to the S3Connection a few at a time.
+ * An upload that fails is tried again later, with a growing delay, until it has had maxAttempts.
+ *
+ * Enqueueing only adds a record to a buffer in memory. The drain thread writes the buffer and syncs the file at most once
+ * every sync interval, so producers never wait for the disk or the network. Use sync to wait for the records to be on disk.
+ * When most of the journal is records of finished uploads it is rewritten with only the queued ones.
+ * Replaying a journal that was cut short by a crash keeps every record before the damaged one.
+ *
+ * The journal keeps the file or data, the key, options, Content-Type, Content-MD5, priority, bucket and the number of attempts.
+ * A MULTIPART upload saves its parts in the connection's resume directory, so set one to have a restarted upload resume.
+ * The listener of an S3UploadSpec is not kept, use a QueueListener instead.
+ */
+public final class S3UploadQueue
+{
+	public static final int DEFAULT_CONCURRENCY = S3UploadScheduler.DEFAULT_WORKERS;
+	public static final int DEFAULT_MAX_ATTEMPTS = 10;
+	public static final long DEFAULT_RETRY_DELAY = 30000;
+	public static final long MAX_RETRY_DELAY = 30 * 60 * 1000;
+	public static final long DEFAULT_SYNC_INTERVAL = 50;
+
+	private static final String TAG = "S3UploadQueue";
+
+	private static final int MAGIC = 0x53335551;
+	private static final int VERSION = 1;
+	private static final byte RECORD_ADD = 1;
+	private static final byte RECORD_ATTEMPT = 2;
+	private static final byte RECORD_DONE = 3;
+	// The journal is only compacted once it is at least this big
+	private static final long COMPACT_SIZE = 256 * 1024;
+	// How long to wait before writing the journal again after a write failed, unless sync asks for it
+	private static final long WRITE_RETRY_DELAY = 1000;
+
+	private static final String ERROR_CLOSED = "The upload queue was closed before the records could be written.";
+
+	public interface QueueListener
+	{
+		/**
+		 * Called on the UI thread when an upload has been sent, or has failed for the last time and left the queue.
+		 */
+		void uploadFinished(S3UploadQueue queue, long id, S3Request request);
+	}
+
+	private final S3Connection connection;
+	private final File journalFile;
+	private QueueListener listener;
+	private int concurrency = DEFAULT_CONCURRENCY;
+	private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+	private long retryDelay = DEFAULT_RETRY_DELAY;
+	private long syncInterval = DEFAULT_SYNC_INTERVAL;
+
+	// Guarded by this
+	private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<Long, Entry>();
+	private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	private long bufferedSince;
+	private long appended;
+	private long synced;
+	private boolean syncRequested;
+	// Set after a failed write, the next one rewrites the whole journal since the failed one may have left half a record
+	private boolean rewriteJournal;
+	private int writeFailures;
+	private IOException writeError;
+	private long nextId = 1;
+	private int running;
+	private long liveBytes;
+	private long journalBytes;
+	private Thread drainThread;
+	private boolean started;
+	private boolean closed;
+
+	// Only used by the drain thread once started
+	private FileOutputStream journalOut;
+
+	private final class Entry implements S3Request.FinishListener
+	{
+		final long id;
+		final String bucket;
+		final S3UploadSpec spec;
+		int attempts;
+		long notBefore;
+		// Set from when the attempt is recorded until the upload finishes
+		boolean running;
+		S3Request request;
+		int recordSize;
+
+		Entry(long id, String bucket, S3UploadSpec spec)
+		{
+			this.id = id;
+			this.bucket = bucket;
+			this.spec = spec;
+		}
+
+		public void requestFinished(S3Request request)
+		{
+			S3UploadQueue.this.requestFinished(this, request);
+		}
+	}
+
+	public S3UploadQueue(S3Connection connection, File journalFile)
+	{
+		this.connection = connection;
+		this.journalFile = journalFile;
+	}
+
+	public synchronized void setListener(QueueListener listener)
+	{
+		this.listener = listener;
+	}
+
+	/**
+	 * Sets how many uploads of the queue are given to the connection at once.
+	 */
+	public synchronized void setConcurrency(int concurrency)
+	{
+		this.concurrency = Math.max(concurrency, 1);
+		this.notifyAll();
+	}
+
+	/**
+	 * Sets how many times an upload is started before it is dropped from the queue, including starts that were
+	 * interrupted by the process being killed. Each attempt also has the retries of the connection's S3RetryPolicy.
+	 */
+	public synchronized void setMaxAttempts(int maxAttempts)
+	{
+		this.maxAttempts = Math.max(maxAttempts, 1);
+	}
+
+	/**
+	 * Sets the delay in milliseconds before a failed upload is started again, doubled after every attempt up to MAX_RETRY_DELAY.
+	 */
+	public synchronized void setRetryDelay(long retryDelay)
+	{
+		this.retryDelay = retryDelay;
+	}
+
+	/**
+	 * Sets how long in milliseconds new records may wait in memory before they are written and synced to the journal.
+	 */
+	public synchronized void setSyncInterval(long syncInterval)
+	{
+		this.syncInterval = Math.max(syncInterval, 0);
+	}
+
+	/**
+	 * Returns the number of uploads in the queue, waiting or running.
+	 */
+	public synchronized int getCount()
+	{
+		return this.entries.size();
+	}
+
+	/**
+	 * Reads the journal, rewriting it with only the uploads that are still queued, and starts the drain thread.
+	 */
+	public void start() throws IOException
+	{
+		byte []snapshot;
+
+		synchronized(this)
+		{
+			if(this.started)
+				throw new IllegalStateException("The upload queue has already been started.");
+			this.replay();
+			this.dropSpent();
+			snapshot = this.snapshot();
+		}
+		this.compact(snapshot);
+
+		synchronized(this)
+		{
+			this.started = true;
+			this.drainThread = new Thread(new Runnable() {
+				public void run()
+				{
+					S3UploadQueue.this.drain();
+				}
+			}, TAG);
+			this.drainThread.setDaemon(true);
+			this.drainThread.start();
+		}
+	}
+
+	/**
+	 * Adds an upload to the bucket the connection has now and returns its id, the queue must have been started.
+	 */
+	public long enqueue(S3UploadSpec spec)
+	{
+		return this.enqueue(spec, this.connection.bucket);
+	}
+
+	public synchronized long enqueue(S3UploadSpec spec, String bucket)
+	{
+		Entry entry;
+
+		if(!this.started || this.closed)
+			throw new IllegalStateException("The upload queue is not running.");
+		entry = new Entry(this.nextId++, bucket, spec);
+		this.entries.put(entry.id, entry);
+		entry.recordSize = this.append(RECORD_ADD, entry);
+		this.liveBytes += entry.recordSize;
+		this.notifyAll();
+		return entry.id;
+	}
+
+	/**
+	 * Removes an upload from the queue, cancelling it if it is running. Returns false if it is not in the queue.
+	 */
+	public boolean remove(long id)
+	{
+		S3Request request;
+
+		synchronized(this)
+		{
+			Entry entry = this.entries.get(id);
+			if(entry == null)
+				return false;
+			request = entry.request;
+			this.removeEntry(entry);
+		}
+		if(request != null)
+			request.cancel();
+		return true;
+	}
+
+	/**
+	 * Blocks until every upload enqueued or finished before this call is recorded on disk.
+	 * Throws the error of a write that failed meanwhile. The records are kept in memory and written again later,
+	 * so sync can be called again.
+	 */
+	public void sync() throws InterruptedException, IOException
+	{
+		synchronized(this)
+		{
+			long target = this.appended;
+			int failures = this.writeFailures;
+
+			this.syncRequested = true;
+			this.notifyAll();
+			while(this.synced < target && this.drainThread != null && this.writeFailures == failures)
+				this.wait();
+			if(this.synced >= target)
+				return;
+			if(this.writeFailures != failures)
+				throw this.writeError;
+			throw new IOException(ERROR_CLOSED);
+		}
+	}
+
+	/**
+	 * Stops starting uploads, writes what is buffered and closes the journal.
+	 * Uploads that are still running are not recorded as finished, so they are sent again when the queue is next started.
+	 */
+	public void close() throws InterruptedException
+	{
+		Thread thread;
+
+		synchronized(this)
+		{
+			this.closed = true;
+			this.notifyAll();
+			thread = this.drainThread;
+		}
+		if(thread != null)
+			thread.join();
+	}
+
+	// The drain thread: writes the buffer, compacts the journal and starts uploads
+	private void drain()
+	{
+		while(true)
+		{
+			ArrayList<Entry> start = new ArrayList<Entry>();
+			byte []records = null, snapshot = null;
+			long target;
+			boolean exit;
+
+			synchronized(this)
+			{
+				try
+				{
+					long wait;
+					while((wait = this.getWaitTime()) > 0)
+						this.wait(wait == Long.MAX_VALUE ? 0 : wait);
+				}
+				catch(InterruptedException e)
+				{
+					this.closed = true;
+				}
+
+				exit = this.closed;
+				if(!exit)
+					this.takeStartable(start);
+				// Only the records that are written this time count as synced
+				target = this.synced;
+				if((this.buffer.size() > 0 || this.rewriteJournal) && (exit || this.syncRequested || System.currentTimeMillis() - this.bufferedSince >= this.syncInterval))
+				{
+					// Rewriting the journal is cheaper than appending to one that is mostly finished uploads
+					if(this.rewriteJournal || (this.journalBytes + this.buffer.size() > COMPACT_SIZE && this.journalBytes + this.buffer.size() > 2 * this.liveBytes))
+						snapshot = this.snapshot();
+					else
+						records = this.buffer.toByteArray();
+					this.buffer = new ByteArrayOutputStream();
+					target = this.appended;
+				}
+				this.syncRequested = false;
+			}
+
+			try
+			{
+				if(snapshot != null)
+					this.compact(snapshot);
+				else if(records != null)
+					this.write(records);
+				synchronized(this)
+				{
+					if(snapshot != null)
+						this.rewriteJournal = false;
+					if(target > this.synced)
+						this.synced = target;
+					this.notifyAll();
+				}
+			}
+			catch(IOException e)
+			{
+				Log.e(TAG, "Could not write the upload journal: " + e.getMessage());
+				synchronized(this)
+				{
+					// What the lost records said is in the entries, so the snapshot of the next write has it
+					this.rewriteJournal = true;
+					this.bufferedSince = System.currentTimeMillis() + WRITE_RETRY_DELAY;
+					this.writeError = e;
+					this.writeFailures++;
+					this.notifyAll();
+				}
+			}
+
+			for(Entry entry : start)
+			{
+				S3Request request = this.connection.upload(entry.spec, entry.bucket, entry);
+				boolean removed;
+
+				synchronized(this)
+				{
+					// An upload that could not be started has finished already
+					if(entry.running)
+						entry.request = request;
+					removed = this.entries.get(entry.id) != entry;
+				}
+				if(removed)
+					request.cancel();
+			}
+
+			if(exit)
+				break;
+		}
+
+		try
+		{
+			if(this.journalOut != null)
+				this.journalOut.close();
+		}
+		catch(IOException e) {}
+		synchronized(this)
+		{
+			this.drainThread = null;
+			this.notifyAll();
+		}
+	}
+
+	// Returns how long the drain thread can sleep, 0 if it has work, Long.MAX_VALUE until it is woken
+	private long getWaitTime()
+	{
+		long now = System.currentTimeMillis(), wait = Long.MAX_VALUE;
+
+		if(this.closed || this.syncRequested)
+			return 0;
+		if(this.buffer.size() > 0 || this.rewriteJournal)
+			wait = Math.max(this.bufferedSince + this.syncInterval - now, 0);
+		if(this.running < this.concurrency)
+		{
+			for(Entry entry : this.entries.values())
+			{
+				if(!entry.running)
+					wait = Math.min(wait, Math.max(entry.notBefore - now, 0));
+			}
+		}
+		return wait;
+	}
+
+	// Picks the uploads to start, oldest first, and records the attempt before they start
+	private void takeStartable(ArrayList<Entry> start)
+	{
+		long now = System.currentTimeMillis();
+
+		for(Entry entry : this.entries.values())
+		{
+			if(this.running >= this.concurrency)
+				break;
+			if(entry.running || entry.notBefore > now)
+				continue;
+			entry.attempts++;
+			entry.running = true;
+			this.running++;
+			this.append(RECORD_ATTEMPT, entry);
+			start.add(entry);
+		}
+	}
+
+	private void requestFinished(final Entry entry, final S3Request request)
+	{
+		final QueueListener queueListener;
+		int status = request.getStatus();
+		String error = request.getError();
+
+		synchronized(this)
+		{
+			this.running--;
+			entry.running = false;
+			entry.request = null;
+			this.notifyAll();
+			// Removed from the queue while it was running
+			if(this.entries.get(entry.id) != entry)
+				return;
+
+			if(status == S3Request.STATUS_CANCELLED)
+			{
+				// Cancelled through the connection rather than removed, so it stays queued
+				entry.notBefore = System.currentTimeMillis() + this.getRetryDelay(entry.attempts);
+				return;
+			}
+			if(status == S3Request.STATUS_FAILED && entry.attempts < this.maxAttempts && !S3Connection.ERROR_BADPATH.equals(error) && !S3Connection.ERROR_MISSINGPARAMS.equals(error))
+			{
+				entry.notBefore = System.currentTimeMillis() + this.getRetryDelay(entry.attempts);
+				return;
+			}
+			this.removeEntry(entry);
+			queueListener = this.listener;
+		}
+
+		if(queueListener != null)
+		{
+			S3Connection.runOnUiThread(new Runnable() {
+				public void run()
+				{
+					queueListener.uploadFinished(S3UploadQueue.this, entry.id, request);
+				}
+			});
+		}
+	}
+
+	private long getRetryDelay(int attempts)
+	{
+		long delay = this.retryDelay << Math.min(Math.max(attempts - 1, 0), 20);
+		return delay > MAX_RETRY_DELAY || delay < 0 ? MAX_RETRY_DELAY : delay;
+	}
+
+	private void removeEntry(Entry entry)
+	{
+		this.entries.remove(entry.id);
+		this.liveBytes -= entry.recordSize;
+		this.append(RECORD_DONE, entry);
+		this.notifyAll();
+	}
+
+	// Adds a record to the buffer, returns its size
+	private int append(byte type, Entry entry)
+	{
+		byte []record = encode(type, entry);
+
+		if(this.buffer.size() == 0 && !this.rewriteJournal)
+			this.bufferedSince = System.currentTimeMillis();
+		this.buffer.write(record, 0, record.length);
+		this.appended++;
+		return record.length;
+	}
+
+	// Every queued upload as a single ADD record with its attempts
+	private byte[] snapshot()
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		for(Entry entry : this.entries.values())
+		{
+			byte []record = encode(RECORD_ADD, entry);
+			entry.recordSize = record.length;
+			out.write(record, 0, record.length);
+		}
+		this.liveBytes = out.size();
+		return out.toByteArray();
+	}
+
+	// A record is its length, the CRC32 of the payload and the payload
+	private static byte[] encode(byte type, Entry entry)
+	{
+		ByteArrayOutputStream payload = new ByteArrayOutputStream(type == RECORD_ADD ? 128 : 9);
+		DataOutputStream out = new DataOutputStream(payload);
+		ByteArrayOutputStream record;
+		CRC32 crc = new CRC32();
+
+		try
+		{
+			out.writeByte(type);
+			out.writeLong(entry.id);
+			if(type == RECORD_ADD)
+			{
+				S3UploadSpec spec = entry.spec;
+				out.writeUTF(entry.bucket != null ? entry.bucket : "");
+				out.writeUTF(spec.key != null ? spec.key : "");
+				out.writeInt(spec.options);
+				out.writeInt(spec.priority);
+				out.writeUTF(spec.contentType != null ? spec.contentType : "");
+				out.writeUTF(spec.contentMD5 != null ? spec.contentMD5 : "");
+				out.writeInt(entry.attempts);
+				out.writeBoolean(spec.file != null);
+				if(spec.file != null)
+					out.writeUTF(spec.file.getAbsolutePath());
+				else
+				{
+					out.writeInt(spec.data != null ? spec.data.length : 0);
+					if(spec.data != null)
+						out.write(spec.data);
+				}
+			}
+			out.flush();
+
+			crc.update(payload.toByteArray());
+			record = new ByteArrayOutputStream(payload.size() + 8);
+			out = new DataOutputStream(record);
+			out.writeInt(payload.size());
+			out.writeInt((int)crc.getValue());
+			payload.writeTo(out);
+			out.flush();
+			return record.toByteArray();
+		}
+		catch(IOException e)
+		{
+			// Writing to memory does not fail
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// Rebuilds the queue from the journal, cutting off anything after a damaged or incomplete record
+	private void replay() throws IOException
+	{
+		DataInputStream in;
+		long valid = 8;
+
+		if(!this.journalFile.exists())
+			return;
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.journalFile)));
+		try
+		{
+			if(in.readInt() != MAGIC || in.readInt() != VERSION)
+			{
+				Log.e(TAG, "Ignoring an upload journal that is not in a known format.");
+				return;
+			}
+			while(true)
+			{
+				int length = in.readInt(), crc = in.readInt();
+				byte []payload;
+				CRC32 check = new CRC32();
+
+				if(length <= 0 || length > 64 * 1024 * 1024)
+					break;
+				payload = new byte[length];
+				in.readFully(payload);
+				check.update(payload);
+				if((int)check.getValue() != crc)
+					break;
+				this.apply(payload);
+				valid += 8 + length;
+			}
+		}
+		catch(EOFException e) {}
+		finally
+		{
+			in.close();
+		}
+
+		if(valid < this.journalFile.length())
+			Log.e(TAG, "The upload journal was cut short, replayed " + valid + " of " + this.journalFile.length() + " bytes.");
+	}
+
+	private void apply(byte []payload) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		byte type = in.readByte();
+		long id = in.readLong();
+		Entry entry;
+
+		this.nextId = Math.max(this.nextId, id + 1);
+		if(type == RECORD_ADD)
+		{
+			String bucket = in.readUTF(), key = in.readUTF();
+			int options = in.readInt(), priority = in.readInt();
+			String contentType = in.readUTF(), contentMD5 = in.readUTF();
+			int attempts = in.readInt();
+			S3UploadSpec spec;
+
+			if(in.readBoolean())
+				spec = new S3UploadSpec(new File(in.readUTF()), key, options);
+			else
+			{
+				byte []data = new byte[in.readInt()];
+				in.readFully(data);
+				spec = new S3UploadSpec(data, null, key, options);
+			}
+			spec.contentType = contentType.length() > 0 ? contentType : null;
+			spec.contentMD5 = contentMD5.length() > 0 ? contentMD5 : null;
+			spec.priority = priority;
+			entry = new Entry(id, bucket, spec);
+			entry.attempts = attempts;
+			this.entries.put(id, entry);
+		}
+		else if((entry = this.entries.get(id)) != null)
+		{
+			if(type == RECORD_ATTEMPT)
+				entry.attempts++;
+			else if(type == RECORD_DONE)
+				this.entries.remove(id);
+		}
+	}
+
+	// Drops uploads that have had all their attempts, in case the process was killed during the last one
+	private void dropSpent()
+	{
+		for(Iterator<Entry> iterator = this.entries.values().iterator(); iterator.hasNext();)
+		{
+			Entry entry = iterator.next();
+			if(entry.attempts >= this.maxAttempts)
+			{
+				Log.e(TAG, "Dropping the upload of " + entry.spec.key + " after " + entry.attempts + " attempts.");
+				iterator.remove();
+			}
+		}
+	}
+
+	private void write(byte []records) throws IOException
+	{
+		if(this.journalOut == null)
+			this.journalOut = new FileOutputStream(this.journalFile, true);
+		this.journalOut.write(records);
+		this.journalOut.getFD().sync();
+		synchronized(this)
+		{
+			this.journalBytes += records.length;
+		}
+	}
+
+	// Writes a new journal with only the records in snapshot and puts it in place of the old one
+	private void compact(byte []snapshot) throws IOException
+	{
+		File temp = new File(this.journalFile.getPath() + ".tmp");
+		RandomAccessFile file = new RandomAccessFile(temp, "rw");
+
+		try
+		{
+			file.setLength(0);
+			file.writeInt(MAGIC);
+			file.writeInt(VERSION);
+			file.write(snapshot);
+			file.getFD().sync();
+		}
+		finally
+		{
+			file.close();
+		}
+
+		if(this.journalOut != null)
+		{
+			this.journalOut.close();
+			this.journalOut = null;
+		}
+		if(!temp.renameTo(this.journalFile))
+		{
+			this.journalFile.delete();
+			if(!temp.renameTo(this.journalFile))
+				throw new IOException("Could not replace the upload journal.");
+		}
+		synchronized(this)
+		{
+			this.journalBytes = 8 + snapshot.length;
+		}
+	}
+}
@@ -0,0 +1,283 @@
+package com.symbiotic.support;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs S3 uploads on a bounded pool of worker threads fed by a bounded priority queue.
+ * Higher priority uploads start first, uploads of the same priority start in the order they were queued.
+ * What happens when the queue is full is decided by the rejection policy.
+ */
+public final class S3UploadScheduler
+{
+	public static final int PRIORITY_LOW = -10;
+	public static final int PRIORITY_NORMAL = 0;
+	public static final int PRIORITY_HIGH = 10;
+
+	// Rejection policies for a full queue
+	public static final int REJECT_FAIL = 0;
+	public static final int REJECT_CALLER_RUNS = 1;
+	public static final int REJECT_BLOCK = 2;
+
+	public static final int DEFAULT_WORKERS = S3ClientPool.DEFAULT_MAX_PER_HOST;
+	public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+	private static final long KEEP_ALIVE = 30000;
+
+	private static S3UploadScheduler defaultScheduler;
+
+	private final ThreadPoolExecutor executor;
+	private final BoundedPriorityQueue queue;
+	private final AtomicLong sequence = new AtomicLong();
+
+	/**
+	 * A task that is told when shutdownNow removes it from the queue, so whatever waits for it can be finished.
+	 */
+	interface DroppableTask extends Runnable
+	{
+		void dropped();
+	}
+
+	// Wraps an upload with its priority and the order it was queued in
+	private static final class PriorityTask implements Runnable, Comparable<PriorityTask>
+	{
+		final Runnable runnable;
+		final int priority;
+		final long sequence;
+
+		PriorityTask(Runnable runnable, int priority, long sequence)
+		{
+			this.runnable = runnable;
+			this.priority = priority;
+			this.sequence = sequence;
+		}
+
+		public void run()
+		{
+			this.runnable.run();
+		}
+
+		public int compareTo(PriorityTask other)
+		{
+			if(this.priority != other.priority)
+				return this.priority > other.priority ? -1 : 1;
+			return this.sequence < other.sequence ? -1 : (this.sequence == other.sequence ? 0 : 1);
+		}
+	}
+
+	// PriorityBlockingQueue has no capacity, so offers are refused once it is full to make the executor reject them
+	private static final class BoundedPriorityQueue extends PriorityBlockingQueue<Runnable>
+	{
+		private static final long serialVersionUID = 1L;
+		private final int capacity;
+
+		BoundedPriorityQueue(int capacity)
+		{
+			super(Math.min(capacity, 64));
+			this.capacity = capacity;
+		}
+
+		@Override
+		public synchronized boolean offer(Runnable runnable)
+		{
+			if(this.size() >= this.capacity)
+				return false;
+			return super.offer(runnable);
+		}
+
+		// Used by REJECT_BLOCK, waits for room in the queue
+		synchronized void putBlocking(Runnable runnable) throws InterruptedException
+		{
+			while(this.size() >= this.capacity)
+				this.wait(100);
+			super.offer(runnable);
+		}
+
+		@Override
+		public Runnable take() throws InterruptedException
+		{
+			Runnable runnable = super.take();
+			this.wakeProducers();
+			return runnable;
+		}
+
+		@Override
+		public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException
+		{
+			Runnable runnable = super.poll(timeout, unit);
+			if(runnable != null)
+				this.wakeProducers();
+			return runnable;
+		}
+
+		private synchronized void wakeProducers()
+		{
+			this.notifyAll();
+		}
+	}
+
+	private static final class RejectionPolicy implements RejectedExecutionHandler
+	{
+		private final int policy;
+
+		RejectionPolicy(int policy)
+		{
+			this.policy = policy;
+		}
+
+		public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor)
+		{
+			if(executor.isShutdown())
+				throw new RejectedExecutionException("Scheduler has been shut down.");
+
+			switch(this.policy)
+			{
+				case REJECT_CALLER_RUNS:
+					runnable.run();
+					break;
+				case REJECT_BLOCK:
+					try
+					{
+						((BoundedPriorityQueue)executor.getQueue()).putBlocking(runnable);
+					}
+					catch(InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						throw new RejectedExecutionException("Interrupted while waiting for the upload queue.");
+					}
+					break;
+				default:
+					throw new RejectedExecutionException("Upload queue is full.");
+			}
+		}
+	}
+
+	public S3UploadScheduler()
+	{
+		this(DEFAULT_WORKERS, DEFAULT_QUEUE_CAPACITY, REJECT_FAIL);
+	}
+
+	/**
+	 * workers is the largest number of uploads that run at once, queueCapacity the number that can wait for a worker.
+	 * Idle workers exit after 30 seconds, so an unused scheduler holds no threads.
+	 */
+	public S3UploadScheduler(int workers, int queueCapacity, int rejectionPolicy)
+	{
+		this.queue = new BoundedPriorityQueue(queueCapacity);
+		this.executor = new ThreadPoolExecutor(workers, workers, KEEP_ALIVE, TimeUnit.MILLISECONDS, this.queue, new ThreadFactory() {
+			private int count = 0;
+
+			public synchronized Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "S3Upload-" + (++this.count));
+				thread.setDaemon(true);
+				return thread;
+			}
+		}, new RejectionPolicy(rejectionPolicy));
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Returns the scheduler shared by every S3Connection that has not been given its own.
+	 */
+	public static synchronized S3UploadScheduler getDefault()
+	{
+		if(defaultScheduler == null)
+			defaultScheduler = new S3UploadScheduler();
+		return defaultScheduler;
+	}
+
+	/**
+	 * Queues runnable with the given priority.
+	 * Throws RejectedExecutionException if the queue is full and the policy is REJECT_FAIL, or after shutdown.
+	 */
+	public void execute(Runnable runnable, int priority)
+	{
+		this.executor.execute(new PriorityTask(runnable, priority, this.sequence.getAndIncrement()));
+	}
+
+	public void execute(Runnable runnable)
+	{
+		this.execute(runnable, PRIORITY_NORMAL);
+	}
+
+	public int getActiveCount()
+	{
+		return this.executor.getActiveCount();
+	}
+
+	public int getQueuedCount()
+	{
+		return this.queue.size();
+	}
+
+	public int getWorkerCount()
+	{
+		return this.executor.getMaximumPoolSize();
+	}
+
+	/**
+	 * Changes the number of uploads that may run at once.
+	 */
+	public void setWorkerCount(int workers)
+	{
+		if(workers > this.executor.getMaximumPoolSize())
+		{
+			this.executor.setMaximumPoolSize(workers);
+			this.executor.setCorePoolSize(workers);
+		}
+		else
+		{
+			this.executor.setCorePoolSize(workers);
+			this.executor.setMaximumPoolSize(workers);
+		}
+	}
+
+	/**
+	 * Stops accepting uploads, the queued and running ones are still finished.
+	 */
+	public void shutdown()
+	{
+		this.executor.shutdown();
+	}
+
+	/**
+	 * Stops accepting uploads and removes the queued ones, which are returned.
+	 * Queued uploads of an S3Connection fail with an error that says the scheduler was shut down, so their listeners are still called,
+	 * and running them afterwards does nothing. Running uploads are interrupted but should be cancelled through their connection to abort the request.
+	 */
+	public List<Runnable> shutdownNow()
+	{
+		List<Runnable> runnables = new ArrayList<Runnable>();
+		for(Runnable runnable : this.executor.shutdownNow())
+			runnables.add(((PriorityTask)runnable).runnable);
+		for(Runnable runnable : runnables)
+		{
+			if(runnable instanceof DroppableTask)
+				((DroppableTask)runnable).dropped();
+		}
+		return runnables;
+	}
+
+	/**
+	 * Shuts down and waits up to timeout milliseconds for queued and running uploads to finish.
+	 * Returns true if everything finished in time.
+	 */
+	public boolean drain(long timeout) throws InterruptedException
+	{
+		this.executor.shutdown();
+		return this.executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	public boolean isShutdown()
+	{
+		return this.executor.isShutdown();
+	}
+}
@@ -0,0 +1,101 @@
+package com.symbiotic.support;
+
+import java.io.File;
+
+/**
+ * Describes one upload of a batch started with S3Connection.uploadBatch: a file or data, the key and the options,
+ * and optionally a priority, a known Content-MD5 and a RequestListener of its own.
+ */
+public final class S3UploadSpec
+{
+	final File file;
+	final byte []data;
+	final String key;
+	final int options;
+	String contentType;
+	String contentMD5;
+	int priority = S3UploadScheduler.PRIORITY_NORMAL;
+	S3Connection.RequestListener listener;
+
+	public S3UploadSpec(File file, String key, int options)
+	{
+		this.file = file;
+		this.data = null;
+		this.key = key;
+		this.options = options;
+	}
+
+	public S3UploadSpec(byte []data, String contentType, String key, int options)
+	{
+		this.file = null;
+		this.data = data;
+		this.contentType = contentType;
+		this.key = key;
+		this.options = options;
+	}
+
+	public File getFile()
+	{
+		return this.file;
+	}
+
+	public byte[] getData()
+	{
+		return this.data;
+	}
+
+	public String getKey()
+	{
+		return this.key;
+	}
+
+	public int getOptions()
+	{
+		return this.options;
+	}
+
+	public int getPriority()
+	{
+		return this.priority;
+	}
+
+	/**
+	 * Uploads with a higher S3UploadScheduler priority are started first, uploads of the same priority smallest first.
+	 */
+	public void setPriority(int priority)
+	{
+		this.priority = priority;
+	}
+
+	/**
+	 * Sets the Content-Type of a file instead of guessing it from the file name.
+	 */
+	public void setContentType(String contentType)
+	{
+		this.contentType = contentType;
+	}
+
+	/**
+	 * Sets the base64 encoded MD5 of the file or data when it is already known, so it is not computed.
+	 */
+	public void setContentMD5(String contentMD5)
+	{
+		this.contentMD5 = contentMD5;
+	}
+
+	/**
+	 * Sets a listener to be told when this upload finishes. Items of a batch have none unless it is set.
+	 */
+	public void setListener(S3Connection.RequestListener listener)
+	{
+		this.listener = listener;
+	}
+
+	// Used to send small uploads first
+	long getLength()
+	{
+		if(this.file != null)
+			return this.file.length();
+		return this.data != null ? this.data.length : 0;
+	}
+}